@@ -0,0 +1,509 @@
+package a;
+
+import java.lang.reflect.Method;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * 基于 Fork/Join 框架的并行排序，由 Test 中的 partitionIt() 和 insertSort() 组成。
+ *
+ * 1、快速排序（sort）：用 “三数取中” 选出枢轴值，调用 Test#partitionIt() 划分，两部分交给两个任务并行排序；
+ *   元素个数少于插入排序阈值（默认 INSERTION_THRESHOLD）时改用 Test#insertSort()；
+ *   递归深度超过 2 * log2(n) 时说明枢轴选得很差（例如精心构造的输入），这一段改用堆排序，
+ *   所以最坏情况也是 O(n log n)，这就是内省排序（introsort）的做法；
+ * 2、LSD 基数排序（radixSort）：每次处理 8 位，int 需要 4 趟，long 需要 8 趟。每一趟把数组分成若干块，
+ *   各块并行地统计直方图，算出每块每个桶的起始位置后，再并行地把元素分散到辅助数组中。
+ *   所有元素在某一位上都相同时跳过这一趟。需要与原数组同样大小的辅助数组。
+ *
+ * @author FrankTaylor <mailto:hubin@300.cn>
+ * @since 1.0
+ */
+public class ParallelSort {
+
+	/** 元素个数少于这个值时改用插入排序的默认值，由 main() 中的测试在 8 到 64 之间选出。*/
+	public static final int INSERTION_THRESHOLD = 32;
+
+	/** 元素个数少于这个值时不再拆分成并行的任务。*/
+	private static final int MIN_PARALLEL_SIZE = 1024 * 8;
+
+	/** 每个工作线程平均分到的叶子任务数（基数排序中是块数）。*/
+	private static final int LEAVES_PER_THREAD = 4;
+
+	private static final int RADIX_BITS = 8;
+	private static final int BUCKETS = 1 << RADIX_BITS;
+	private static final int MASK = BUCKETS - 1;
+
+	private final ForkJoinPool pool;
+	private volatile int insertionThreshold = INSERTION_THRESHOLD;
+
+	public ParallelSort(ForkJoinPool pool) {
+		this.pool = pool;
+	}
+
+	/** 设置快速排序改用插入排序的元素个数，至少为 3（三数取中需要 3 个元素）。*/
+	public void setInsertionThreshold(int insertionThreshold) {
+		if (insertionThreshold < 3) {
+			throw new IllegalArgumentException("insertionThreshold = " + insertionThreshold);
+		}
+		this.insertionThreshold = insertionThreshold;
+	}
+
+	/** 用并行的快速排序对整个数组排序。*/
+	public void sort(int[] elems) {
+		sort(elems, 0, elems.length);
+	}
+
+	/** 用并行的快速排序对下标 from（含）到 to（不含）之间的元素排序。*/
+	public void sort(int[] elems, int from, int to) {
+		if (from < 0 || to > elems.length || from > to) {
+			throw new ArrayIndexOutOfBoundsException("from = " + from + ", to = " + to + ", length = " + elems.length);
+		}
+		int n = to - from;
+		int parallelSize = Math.max(MIN_PARALLEL_SIZE, n / (pool.getParallelism() * LEAVES_PER_THREAD));
+		pool.invoke(new QuickSortTask(elems, from, to - 1, 2 * log2(n), insertionThreshold, parallelSize));
+	}
+
+	private static int log2(int n) {
+		return 31 - Integer.numberOfLeadingZeros(Math.max(n, 1));
+	}
+
+	/** 对 elems 中下标 left 到 right（含）之间的元素排序。*/
+	private static class QuickSortTask extends RecursiveAction {
+
+		private static final long serialVersionUID = 4682127384516239780L;
+
+		private final int[] elems;
+		private int left, right;
+		private int depth;
+		private final int insertionThreshold;
+		private final int parallelSize;
+
+		QuickSortTask(int[] elems, int left, int right, int depth, int insertionThreshold, int parallelSize) {
+			this.elems = elems;
+			this.left = left;
+			this.right = right;
+			this.depth = depth;
+			this.insertionThreshold = insertionThreshold;
+			this.parallelSize = parallelSize;
+		}
+
+		@Override
+		protected void compute() {
+			QuickSortTask forked = null;
+
+			// 较小的一半递归处理（或 fork），较大的一半在循环中继续处理，栈的深度不会超过 log2(n)。
+			while (right - left + 1 >= insertionThreshold) {
+				if (depth-- == 0) {
+					heapSort(elems, left, right);
+					break;
+				}
+
+				int pivot = medianOfThree(elems[left], elems[(left + right) >>> 1], elems[right]);
+				int mid = Test.partitionIt(left, right, pivot, elems);
+
+				// 左边 [left, mid - 1] 都不大于枢轴值，右边 [mid, right] 都不小于枢轴值。
+				int smallLeft, smallRight;
+				if (mid - left < right - mid + 1) {
+					smallLeft = left;
+					smallRight = mid - 1;
+					left = mid;
+				} else {
+					smallLeft = mid;
+					smallRight = right;
+					right = mid - 1;
+				}
+
+				if (smallRight - smallLeft + 1 >= parallelSize && forked == null) {
+					forked = new QuickSortTask(elems, smallLeft, smallRight, depth, insertionThreshold, parallelSize);
+					forked.fork();
+				} else {
+					new QuickSortTask(elems, smallLeft, smallRight, depth, insertionThreshold, parallelSize).compute();
+				}
+			}
+			if (right - left + 1 < insertionThreshold) {
+				Test.insertSort(elems, left, right);
+			}
+
+			if (forked != null) {
+				forked.join();
+			}
+		}
+	}
+
+	/**
+	 * 三个数的中位数。区间至少有 3 个元素时，这个值不会是区间中唯一的最小值，
+	 * 所以 partitionIt() 返回的位置一定大于 left，两部分都不为空，递归一定会结束。
+	 */
+	private static int medianOfThree(int a, int b, int c) {
+		if (a > b) {
+			int t = a; a = b; b = t;
+		}
+		if (b > c) {
+			b = c;
+		}
+		return Math.max(a, b);
+	}
+
+	/** 对 elems 中下标 left 到 right（含）之间的元素做堆排序。*/
+	static void heapSort(int[] elems, int left, int right) {
+		int n = right - left + 1;
+		for (int i = n / 2 - 1; i >= 0; i--) {
+			siftDown(elems, left, i, n);
+		}
+		for (int i = n - 1; i > 0; i--) {
+			int temp = elems[left];
+			elems[left] = elems[left + i];
+			elems[left + i] = temp;
+			siftDown(elems, left, 0, i);
+		}
+	}
+
+	private static void siftDown(int[] elems, int base, int i, int n) {
+		int temp = elems[base + i];
+		while (true) {
+			int child = 2 * i + 1;
+			if (child >= n) {
+				break;
+			}
+			if (child + 1 < n && elems[base + child + 1] > elems[base + child]) {
+				child++;
+			}
+			if (elems[base + child] <= temp) {
+				break;
+			}
+			elems[base + i] = elems[base + child];
+			i = child;
+		}
+		elems[base + i] = temp;
+	}
+
+	/** 并行地对块 0 到 chunks - 1 执行 body。*/
+	private static abstract class ChunkTask extends RecursiveAction {
+
+		private static final long serialVersionUID = -3360624311867931581L;
+
+		private final int from, to;
+
+		ChunkTask(int from, int to) {
+			this.from = from;
+			this.to = to;
+		}
+
+		abstract void body(int chunk);
+
+		abstract ChunkTask create(int from, int to);
+
+		@Override
+		protected void compute() {
+			if (to - from == 1) {
+				body(from);
+			} else {
+				int mid = (from + to) >>> 1;
+				invokeAll(create(from, mid), create(mid, to));
+			}
+		}
+	}
+
+	/** 块数：至少 1 块，每块至少 MIN_PARALLEL_SIZE 个元素。*/
+	private int chunkCount(int n) {
+		return Math.max(1, Math.min(pool.getParallelism() * LEAVES_PER_THREAD, n / MIN_PARALLEL_SIZE));
+	}
+
+	/**
+	 * 把每块每个桶的计数转换为这块这个桶在输出数组中的起始位置，返回 false 表示所有元素都在同一个桶中，这一趟可以跳过。
+	 * 输出顺序是：桶 0 的第 0 块、第 1 块……桶 1 的第 0 块……，所以排序是稳定的。
+	 */
+	private static boolean offsets(int counts[][], int n) {
+		int position = 0;
+		for (int bucket = 0; bucket < BUCKETS; bucket++) {
+			int total = 0;
+			for (int[] count : counts) {
+				total += count[bucket];
+			}
+			if (total == n) {
+				return false;
+			}
+			for (int[] count : counts) {
+				int c = count[bucket];
+				count[bucket] = position;
+				position += c;
+			}
+		}
+		return true;
+	}
+
+	/** 用并行的 LSD 基数排序对整个数组排序。*/
+	public void radixSort(final int[] elems) {
+		final int n = elems.length;
+		final int chunks = chunkCount(n);
+		final int counts[][] = new int[chunks][BUCKETS];
+		int[] src = elems;
+		int[] dst = new int[n];
+
+		for (int shift = 0; shift < 32; shift += RADIX_BITS) {
+			// 最高的 8 位要翻转符号位，负数才会排在正数前面。
+			final int flip = shift == 32 - RADIX_BITS ? 0x80 : 0;
+			final int s = shift;
+			final int[] from = src, to = dst;
+
+			for (int[] count : counts) {
+				Arrays.fill(count, 0);
+			}
+			pool.invoke(new ChunkTask(0, chunks) {
+				private static final long serialVersionUID = 1L;
+
+				@Override
+				void body(int chunk) {
+					int count[] = counts[chunk];
+					for (int i = chunkStart(chunk, chunks, n), end = chunkStart(chunk + 1, chunks, n); i < end; i++) {
+						count[((from[i] >>> s) & MASK) ^ flip]++;
+					}
+				}
+
+				@Override
+				ChunkTask create(int f, int t) {
+					return copy(this, f, t);
+				}
+			});
+			if (!offsets(counts, n)) {
+				continue;
+			}
+			pool.invoke(new ChunkTask(0, chunks) {
+				private static final long serialVersionUID = 1L;
+
+				@Override
+				void body(int chunk) {
+					int position[] = counts[chunk];
+					for (int i = chunkStart(chunk, chunks, n), end = chunkStart(chunk + 1, chunks, n); i < end; i++) {
+						int value = from[i];
+						to[position[((value >>> s) & MASK) ^ flip]++] = value;
+					}
+				}
+
+				@Override
+				ChunkTask create(int f, int t) {
+					return copy(this, f, t);
+				}
+			});
+			src = to;
+			dst = from;
+		}
+
+		if (src != elems) {
+			System.arraycopy(src, 0, elems, 0, n);
+		}
+	}
+
+	/** 用并行的 LSD 基数排序对整个数组排序。*/
+	public void radixSort(final long[] elems) {
+		final int n = elems.length;
+		final int chunks = chunkCount(n);
+		final int counts[][] = new int[chunks][BUCKETS];
+		long[] src = elems;
+		long[] dst = new long[n];
+
+		for (int shift = 0; shift < 64; shift += RADIX_BITS) {
+			final int flip = shift == 64 - RADIX_BITS ? 0x80 : 0;
+			final int s = shift;
+			final long[] from = src, to = dst;
+
+			for (int[] count : counts) {
+				Arrays.fill(count, 0);
+			}
+			pool.invoke(new ChunkTask(0, chunks) {
+				private static final long serialVersionUID = 1L;
+
+				@Override
+				void body(int chunk) {
+					int count[] = counts[chunk];
+					for (int i = chunkStart(chunk, chunks, n), end = chunkStart(chunk + 1, chunks, n); i < end; i++) {
+						count[((int) (from[i] >>> s) & MASK) ^ flip]++;
+					}
+				}
+
+				@Override
+				ChunkTask create(int f, int t) {
+					return copy(this, f, t);
+				}
+			});
+			if (!offsets(counts, n)) {
+				continue;
+			}
+			pool.invoke(new ChunkTask(0, chunks) {
+				private static final long serialVersionUID = 1L;
+
+				@Override
+				void body(int chunk) {
+					int position[] = counts[chunk];
+					for (int i = chunkStart(chunk, chunks, n), end = chunkStart(chunk + 1, chunks, n); i < end; i++) {
+						long value = from[i];
+						to[position[((int) (value >>> s) & MASK) ^ flip]++] = value;
+					}
+				}
+
+				@Override
+				ChunkTask create(int f, int t) {
+					return copy(this, f, t);
+				}
+			});
+			src = to;
+			dst = from;
+		}
+
+		if (src != elems) {
+			System.arraycopy(src, 0, elems, 0, n);
+		}
+	}
+
+	private static int chunkStart(int chunk, int chunks, int n) {
+		return (int) ((long) n * chunk / chunks);
+	}
+
+	/** 创建一个执行同样 body()、但处理块 from 到 to 的任务。*/
+	private static ChunkTask copy(final ChunkTask task, int from, int to) {
+		return new ChunkTask(from, to) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			void body(int chunk) {
+				task.body(chunk);
+			}
+
+			@Override
+			ChunkTask create(int f, int t) {
+				return copy(task, f, t);
+			}
+		};
+	}
+
+	/** Arrays#parallelSort(int[]) 是 Java 8 才有的方法，这里通过反射调用，没有时退回 Arrays#sort(int[])。*/
+	private static final Method PARALLEL_SORT = findParallelSort();
+
+	private static Method findParallelSort() {
+		try {
+			return Arrays.class.getMethod("parallelSort", int[].class);
+		} catch (NoSuchMethodException e) {
+			return null;
+		}
+	}
+
+	private static void jdkSort(int[] elems) {
+		if (PARALLEL_SORT == null) {
+			Arrays.sort(elems);
+			return;
+		}
+		try {
+			PARALLEL_SORT.invoke(null, (Object) elems);
+		} catch (ReflectiveOperationException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private interface Sorter {
+		void sort(int[] elems);
+	}
+
+	/** 对 rounds 份随机数据排序，返回最快一轮的耗时（纳秒），并检查排序结果。*/
+	private static long bestOf(int rounds, int data[], Sorter sorter) {
+		long best = Long.MAX_VALUE;
+		int copy[] = new int[data.length];
+		for (int i = 0; i < rounds; i++) {
+			System.arraycopy(data, 0, copy, 0, data.length);
+			long start = System.nanoTime();
+			sorter.sort(copy);
+			best = Math.min(best, System.nanoTime() - start);
+		}
+		for (int i = 1; i < copy.length; i++) {
+			if (copy[i - 1] > copy[i]) {
+				throw new IllegalStateException("Not sorted at " + i);
+			}
+		}
+		return best;
+	}
+
+	/**
+	 * 在不同的数据量下比较快速排序、基数排序和 Arrays#parallelSort()。没有使用 JMH，而是采用同样的做法：
+	 * 每种算法先预热，再取多轮中最快的一轮。运行参数是最大的数据量，默认 10,000,000。
+	 */
+	public static void main(String[] args) {
+		int maxSize = args.length > 0 ? Integer.parseInt(args[0]) : 10000000;
+		ForkJoinPool pool = new ForkJoinPool();
+		final ParallelSort sorter = new ParallelSort(pool);
+		Random random = new Random(42);
+
+		Sorter quick = new Sorter() {
+			@Override
+			public void sort(int[] elems) {
+				sorter.sort(elems);
+			}
+		};
+		Sorter radix = new Sorter() {
+			@Override
+			public void sort(int[] elems) {
+				sorter.radixSort(elems);
+			}
+		};
+		Sorter jdk = new Sorter() {
+			@Override
+			public void sort(int[] elems) {
+				jdkSort(elems);
+			}
+		};
+
+		// 预热。
+		int warmup[] = new int[1000000];
+		for (int i = 0; i < warmup.length; i++) {
+			warmup[i] = random.nextInt();
+		}
+		bestOf(5, warmup, quick);
+		bestOf(5, warmup, radix);
+		bestOf(5, warmup, jdk);
+
+		// 插入排序的阈值：用不同的阈值对同一份数据做快速排序。
+		System.out.println("Insertion sort threshold (quicksort of 1,000,000 ints):");
+		for (int t = 8; t <= 64; t *= 2) {
+			sorter.setInsertionThreshold(t);
+			System.out.printf("  %3d: %.2f ms\n", t, bestOf(10, warmup, quick) / 1e6);
+		}
+		sorter.setInsertionThreshold(INSERTION_THRESHOLD);
+
+		System.out.printf("%12s %12s %12s %12s   (parallelism %d, %s)\n", "size", "quicksort", "radix", "JDK", pool.getParallelism(),
+				PARALLEL_SORT != null ? "Arrays.parallelSort" : "Arrays.sort");
+		for (int size = 10000; size <= maxSize; size *= 10) {
+			int data[] = new int[size];
+			for (int i = 0; i < size; i++) {
+				data[i] = random.nextInt();
+			}
+			int rounds = size >= 10000000 ? 3 : 10;
+			System.out.printf("%12d %9.2f ms %9.2f ms %9.2f ms\n", size, bestOf(rounds, data, quick) / 1e6,
+					bestOf(rounds, data, radix) / 1e6, bestOf(rounds, data, jdk) / 1e6);
+		}
+
+		// 对快速排序不利的输入：已排序、逆序、全部相同。
+		int sorted[] = new int[maxSize / 10];
+		for (int i = 0; i < sorted.length; i++) {
+			sorted[i] = i;
+		}
+		int reversed[] = new int[sorted.length];
+		for (int i = 0; i < reversed.length; i++) {
+			reversed[i] = reversed.length - i;
+		}
+		int equal[] = new int[sorted.length];
+		System.out.printf("%12s %9.2f ms %9.2f ms %9.2f ms\n", "sorted", bestOf(3, sorted, quick) / 1e6, bestOf(3, sorted, radix) / 1e6, bestOf(3, sorted, jdk) / 1e6);
+		System.out.printf("%12s %9.2f ms %9.2f ms %9.2f ms\n", "reversed", bestOf(3, reversed, quick) / 1e6, bestOf(3, reversed, radix) / 1e6, bestOf(3, reversed, jdk) / 1e6);
+		System.out.printf("%12s %9.2f ms %9.2f ms %9.2f ms\n", "all equal", bestOf(3, equal, quick) / 1e6, bestOf(3, equal, radix) / 1e6, bestOf(3, equal, jdk) / 1e6);
+
+		long longs[] = new long[1000000];
+		for (int i = 0; i < longs.length; i++) {
+			longs[i] = random.nextLong();
+		}
+		long expected[] = longs.clone();
+		Arrays.sort(expected);
+		sorter.radixSort(longs);
+		System.out.println("long[] radix sort matches Arrays.sort: " + Arrays.equals(expected, longs));
+
+		pool.shutdown();
+	}
+}
@@ -64,11 +64,16 @@ public class Test {
 	}
 	
 	private static void insertSort(int[] elems) {
+		insertSort(elems, 0, elems.length - 1);
+	}
+	
+	/** 对 elems 中下标 left 到 right（含）之间的元素做插入排序。*/
+	static void insertSort(int[] elems, int left, int right) {
 		int in, out;
-		for (out = 1; out < elems.length; out++) {
+		for (out = left + 1; out <= right; out++) {
 			int temp = elems[out];
 			in = out;
-			while (in > 0 && elems[in - 1] >= temp) {
+			while (in > left && elems[in - 1] > temp) {
 				elems[in] = elems[in - 1];
 				--in;
 			}
@@ -0,0 +1,382 @@
+package chapter3;
+
+import java.util.ArrayDeque;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 按权重取许可、分优先级通道排队的准入控制器，可以代替 Main_1 / Main_2 中 PrintQueue 的 Semaphore。
+ *
+ * 注意：Main_1 / Main_2 本身没有改动，它们演示的就是 Semaphore 的用法，仍然使用 new Semaphore(1) / new Semaphore(3)。
+ * 实际使用时，把 PrintQueue 的 semaphore.acquire() / release() 换成 acquire(lane, weight) / release(weight)，
+ * weight 取任务的代价（例如页数），lane 取任务的优先级即可；main() 中的演示就是这样模拟打印和导出任务的。
+ *
+ * PrintQueue 的每个 Job 都只取一个许可，所有 Job 在一条队列中排队。如果任务的代价相差很大（例如打印一页和导出整个报表），
+ * 就应该按代价取许可：代价为 N 的任务取 N 个许可。但 Semaphore#acquire(N) 在公平模式下有 “队头阻塞” 的问题：
+ * 一个大任务排在队头等待足够多的许可时，后面所有的小任务即使只要 1 个许可也只能跟着等；在非公平模式下则相反，大任务可能一直等不到。
+ *
+ * AdmissionController 的做法是：
+ * 1、每个优先级一条 FIFO 通道（0 的优先级最高），通道内按到达顺序准入，通道之间按优先级准入：
+ *   一条通道的队头许可不够时，继续看下一条通道，小任务不会被其他通道中的大任务挡住；
+ * 2、为了不让大任务饿死，某条通道的队头等待超过 agingNanos 之后，控制器暂停所有其他准入，把归还的许可留给它；
+ * 3、每条通道记录当前排队的任务数、已准入的任务数、总等待时间和最长等待时间，用来调整许可总数。
+ *
+ * @author FrankTaylor <mailto:hubin@300.cn>
+ * @since 1.0
+ */
+public class AdmissionController {
+
+	/** 一个排队中的任务。*/
+	private static class Waiter {
+
+		final int lane;
+		final int weight;
+		final long enqueued = System.nanoTime();
+		final Condition admitted;
+		boolean granted;
+
+		Waiter(int lane, int weight, Condition admitted) {
+			this.lane = lane;
+			this.weight = weight;
+			this.admitted = admitted;
+		}
+	}
+
+	/** 一条通道的队列和统计数据，都由 lock 保护。*/
+	private static class Lane {
+
+		final ArrayDeque<Waiter> queue = new ArrayDeque<Waiter>();
+		long admitted;
+		long totalWaitNanos;
+		long maxWaitNanos;
+	}
+
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Lane lanes[];
+	private final int permits;
+	private final long agingNanos;
+	private int available;
+
+	/**
+	 * @param permits 许可总数
+	 * @param lanes 优先级通道的个数
+	 * @param aging 通道队头等待超过这个时间后优先准入
+	 */
+	public AdmissionController(int permits, int lanes, long aging, TimeUnit unit) {
+		if (permits <= 0 || lanes <= 0) {
+			throw new IllegalArgumentException("permits = " + permits + ", lanes = " + lanes);
+		}
+		this.permits = permits;
+		this.available = permits;
+		this.agingNanos = unit.toNanos(aging);
+		this.lanes = new Lane[lanes];
+		for (int i = 0; i < lanes; i++) {
+			this.lanes[i] = new Lane();
+		}
+	}
+
+	/** 在第 lane 条通道中排队，取 weight 个许可，一直等到取得为止。*/
+	public void acquire(int lane, int weight) throws InterruptedException {
+		acquire(lane, weight, false, 0);
+	}
+
+	/** 在第 lane 条通道中排队，取 weight 个许可，最多等待 timeout；超时返回 false，此时没有取得任何许可。*/
+	public boolean tryAcquire(int lane, int weight, long timeout, TimeUnit unit) throws InterruptedException {
+		return acquire(lane, weight, true, unit.toNanos(timeout));
+	}
+
+	private boolean acquire(int lane, int weight, boolean timed, long nanos) throws InterruptedException {
+		if (lane < 0 || lane >= lanes.length) {
+			throw new IllegalArgumentException("lane = " + lane);
+		}
+		if (weight <= 0 || weight > permits) {
+			throw new IllegalArgumentException("weight = " + weight + ", permits = " + permits);
+		}
+		lock.lockInterruptibly();
+		try {
+			Waiter waiter = new Waiter(lane, weight, lock.newCondition());
+			lanes[lane].queue.addLast(waiter);
+			dispatch();
+			try {
+				while (!waiter.granted) {
+					if (!timed) {
+						waiter.admitted.await();
+					} else if (nanos <= 0) {
+						break;
+					} else {
+						nanos = waiter.admitted.awaitNanos(nanos);
+					}
+				}
+			} catch (InterruptedException e) {
+				if (!waiter.granted) {
+					cancel(waiter);
+					throw e;
+				}
+				// 已经取得了许可，保留中断状态，正常返回。
+				Thread.currentThread().interrupt();
+			}
+			if (!waiter.granted) {
+				cancel(waiter);
+				return false;
+			}
+			return true;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/** 归还 weight 个许可。*/
+	public void release(int weight) {
+		lock.lock();
+		try {
+			if (weight <= 0 || available + weight > permits) {
+				throw new IllegalStateException("weight = " + weight + ", available = " + available + ", permits = " + permits);
+			}
+			available += weight;
+			dispatch();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/** 超时或被中断的任务离开队列。它可能正是挡住其他任务的那个队头，所以要重新分配一次。*/
+	private void cancel(Waiter waiter) {
+		lanes[waiter.lane].queue.remove(waiter);
+		dispatch();
+	}
+
+	/** 把空闲的许可分配给排队的任务。调用时必须持有 lock。*/
+	private void dispatch() {
+		long now = System.nanoTime();
+
+		// 等待时间超过 agingNanos 的队头中等得最久的一个：只有它能被准入。
+		Waiter starving = null;
+		for (Lane lane : lanes) {
+			Waiter head = lane.queue.peekFirst();
+			if (head != null && now - head.enqueued >= agingNanos && (starving == null || head.enqueued < starving.enqueued)) {
+				starving = head;
+			}
+		}
+		if (starving != null) {
+			if (starving.weight > available) {
+				return;
+			}
+			lanes[starving.lane].queue.pollFirst();
+			grant(starving, now);
+		}
+
+		for (Lane lane : lanes) {
+			Waiter head;
+			while ((head = lane.queue.peekFirst()) != null && head.weight <= available) {
+				lane.queue.pollFirst();
+				grant(head, now);
+			}
+		}
+	}
+
+	private void grant(Waiter waiter, long now) {
+		available -= waiter.weight;
+		waiter.granted = true;
+
+		Lane lane = lanes[waiter.lane];
+		long wait = now - waiter.enqueued;
+		lane.admitted++;
+		lane.totalWaitNanos += wait;
+		lane.maxWaitNanos = Math.max(lane.maxWaitNanos, wait);
+		waiter.admitted.signal();
+	}
+
+	public int getPermits() {
+		return permits;
+	}
+
+	public int getAvailablePermits() {
+		lock.lock();
+		try {
+			return available;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/** 第 lane 条通道中正在排队的任务数。*/
+	public int getQueueDepth(int lane) {
+		lock.lock();
+		try {
+			return lanes[lane].queue.size();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/** 第 lane 条通道已准入的任务数。*/
+	public long getAdmitted(int lane) {
+		lock.lock();
+		try {
+			return lanes[lane].admitted;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/** 第 lane 条通道中已准入的任务的平均等待时间（纳秒）。*/
+	public long getAverageWaitNanos(int lane) {
+		lock.lock();
+		try {
+			Lane l = lanes[lane];
+			return l.admitted == 0 ? 0 : l.totalWaitNanos / l.admitted;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/** 第 lane 条通道中已准入的任务的最长等待时间（纳秒）。*/
+	public long getMaxWaitNanos(int lane) {
+		lock.lock();
+		try {
+			return lanes[lane].maxWaitNanos;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/** 准入任务的方式：AdmissionController 或者作为对照的公平模式 Semaphore。*/
+	private interface Gate {
+
+		/** 取得许可，返回等待的时间（纳秒）。*/
+		long acquire(int lane, int weight) throws InterruptedException;
+
+		void release(int weight);
+	}
+
+	/** 与 Main_1 / Main_2 中的 Job 一样反复提交任务，代价为 weight，打印 duration 毫秒。*/
+	private static class Job implements Runnable {
+
+		private final Gate gate;
+		private final int lane;
+		private final int weight;
+		private final long duration;
+		private final int count;
+		private final CountDownLatch done;
+		long totalWait;
+		long maxWait;
+
+		Job(Gate gate, int lane, int weight, long duration, int count, CountDownLatch done) {
+			this.gate = gate;
+			this.lane = lane;
+			this.weight = weight;
+			this.duration = duration;
+			this.count = count;
+			this.done = done;
+		}
+
+		@Override
+		public void run() {
+			Random random = new Random();
+			try {
+				for (int i = 0; i < count; i++) {
+					long wait = gate.acquire(lane, weight);
+					totalWait += wait;
+					maxWait = Math.max(maxWait, wait);
+					try {
+						Thread.sleep(duration);
+					} finally {
+						gate.release(weight);
+					}
+					Thread.sleep(random.nextInt(5));
+				}
+			} catch (InterruptedException e) {
+				e.printStackTrace();
+			} finally {
+				done.countDown();
+			}
+		}
+	}
+
+	/** 运行一组小任务和大任务，输出两类任务的平均和最长等待时间。*/
+	private static void run(String name, Gate gate, AdmissionController controller) throws InterruptedException {
+		final int SMALL_THREADS = 16, SMALL_JOBS = 100, SMALL_WEIGHT = 1, SMALL_MILLIS = 2;
+		final int LARGE_THREADS = 4, LARGE_JOBS = 5, LARGE_WEIGHT = 60, LARGE_MILLIS = 100;
+
+		CountDownLatch done = new CountDownLatch(SMALL_THREADS + LARGE_THREADS);
+		Job small[] = new Job[SMALL_THREADS];
+		Job large[] = new Job[LARGE_THREADS];
+		for (int i = 0; i < SMALL_THREADS; i++) {
+			small[i] = new Job(gate, 0, SMALL_WEIGHT, SMALL_MILLIS, SMALL_JOBS, done);
+			new Thread(small[i], "Small-" + i).start();
+		}
+		for (int i = 0; i < LARGE_THREADS; i++) {
+			large[i] = new Job(gate, 1, LARGE_WEIGHT, LARGE_MILLIS, LARGE_JOBS, done);
+			new Thread(large[i], "Large-" + i).start();
+		}
+
+		long start = System.nanoTime();
+		if (controller != null) {
+			while (!done.await(200, TimeUnit.MILLISECONDS)) {
+				System.out.printf("%s: available %d, small queue %d, large queue %d\n", name, controller.getAvailablePermits(),
+						controller.getQueueDepth(0), controller.getQueueDepth(1));
+			}
+		}
+		done.await();
+		long elapsed = System.nanoTime() - start;
+
+		report(name, "small", small, SMALL_JOBS);
+		report(name, "large", large, LARGE_JOBS);
+		System.out.printf("%s: finished in %d ms\n", name, elapsed / 1000000);
+	}
+
+	private static void report(String name, String kind, Job jobs[], int count) {
+		long total = 0, max = 0;
+		for (Job job : jobs) {
+			total += job.totalWait;
+			max = Math.max(max, job.maxWait);
+		}
+		System.out.printf("%s: %s jobs wait %.2f ms on average, %.2f ms at most\n", name, kind, total / 1e6 / (jobs.length * count), max / 1e6);
+	}
+
+	/**
+	 * 100 个许可，16 个线程反复提交代价为 1 的小任务，4 个线程提交代价为 60 的大任务。
+	 * 先用公平模式的 Semaphore#acquire(N) 准入，再用 AdmissionController（小任务走通道 0，大任务走通道 1）准入，比较两类任务的等待时间。
+	 */
+	public static void main(String[] args) throws InterruptedException {
+		final int PERMITS = 100;
+
+		final Semaphore semaphore = new Semaphore(PERMITS, true);
+		run("Semaphore", new Gate() {
+			@Override
+			public long acquire(int lane, int weight) throws InterruptedException {
+				long start = System.nanoTime();
+				semaphore.acquire(weight);
+				return System.nanoTime() - start;
+			}
+
+			@Override
+			public void release(int weight) {
+				semaphore.release(weight);
+			}
+		}, null);
+
+		final AdmissionController controller = new AdmissionController(PERMITS, 2, 500, TimeUnit.MILLISECONDS);
+		run("AdmissionController", new Gate() {
+			@Override
+			public long acquire(int lane, int weight) throws InterruptedException {
+				long start = System.nanoTime();
+				controller.acquire(lane, weight);
+				return System.nanoTime() - start;
+			}
+
+			@Override
+			public void release(int weight) {
+				controller.release(weight);
+			}
+		}, controller);
+		for (int lane = 0; lane < 2; lane++) {
+			System.out.printf("AdmissionController: lane %d admitted %d, average wait %.2f ms, max wait %.2f ms\n", lane,
+					controller.getAdmitted(lane), controller.getAverageWaitNanos(lane) / 1e6, controller.getMaxWaitNanos(lane) / 1e6);
+		}
+	}
+}
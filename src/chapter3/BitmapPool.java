@@ -0,0 +1,504 @@
+package chapter3;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 用位图实现的无锁资源池，可以代替 Main_2 中 PrintQueue 的 “Semaphore + Lock + boolean[]” 组合。
+ * Main_2 本身演示的是 Semaphore 的用法，没有改动；main() 中的 LockedPool 是它的做法，用来对比。
+ *
+ * Main_2 每次取打印机都要先获得信号量，再获得锁，然后从头顺序扫描 freePrinters 数组；归还时却在锁外直接写 freePrinters[i] = true，
+ * 其他线程不一定能看到这次写入。资源有几百个、线程有几十个的时候（例如连接池、缓冲区池），这把锁和从头开始的扫描都会成为瓶颈。
+ *
+ * BitmapPool 的做法是：
+ * 1、每个资源对应 AtomicLongArray 中的一位，1 表示已被占用。取资源就是用 CAS 把某个 0 位改成 1，归还就是用 CAS 把它改回 0，不需要加锁，
+ *   归还的写入对之后取资源的线程一定可见；
+ * 2、每个线程记住自己上一次取到或归还的资源所在的字（亲和提示），下一次从这个字开始找，不同的线程大多在不同的字上做 CAS，减少冲突，
+ *   同一个线程也更容易拿回刚用过的、还在缓存中的资源；
+ * 3、取不到资源时才进入慢路径：在 Condition 上等待，直到有资源被归还或者超时。归还资源时只有存在等待的线程才会去获得锁。
+ *
+ * 默认（非公平）模式下，新来的线程在快速路径上直接 CAS，可以抢在已经等待的线程之前拿走刚归还的资源，
+ * 被唤醒的线程再去找时资源可能已经没有了，只能接着等待。资源很少、线程很多的时候，一个等待的线程可能一直拿不到资源，
+ * 直到 acquire(timeout) 超时，尽管资源一直在周转。这种模式吞吐量最高，适合只用 acquire() 且不关心个别线程等待时间的场合。
+ *
+ * 公平模式（构造时 fair 为 true）下，等待的线程按先后顺序排队：
+ * 1、有线程在排队时，新来的线程不走快速路径，tryAcquire() 直接返回 -1，acquire() 排到队尾；
+ * 2、归还资源时如果有线程在排队，不清除位，而是把资源直接交给队首的线程（hand-off），其他线程没有机会抢走它；
+ * 3、排在队首的线程最多等待它前面的线程各自拿到一次资源，不会被饿死。
+ * 代价是有线程排队时每次归还都要获得锁，吞吐量比非公平模式低。
+ *
+ * @author FrankTaylor <mailto:hubin@300.cn>
+ * @since 1.0
+ */
+public class BitmapPool<T> {
+
+	private final List<T> resources;
+	private final AtomicLongArray bits;
+	private final int words;
+
+	/** 最后一个字中有效位的掩码（其余的字全部有效）。*/
+	private final long lastMask;
+
+	/** 每个线程的亲和提示：下一次开始查找的字。*/
+	private final ThreadLocal<int[]> hint = new ThreadLocal<int[]>() {
+		@Override
+		protected int[] initialValue() {
+			// 用线程 ID 打散各个线程的起点。
+			long h = Thread.currentThread().getId() * 0x9E3779B97F4A7C15L;
+			return new int[] {(int) ((h >>> 32) % words + words) % words};
+		}
+	};
+
+	/** 在慢路径上等待的线程数，以及等待用的锁和条件。*/
+	private final AtomicInteger waiters = new AtomicInteger();
+	private final Lock lock = new ReentrantLock();
+	private final Condition released = lock.newCondition();
+
+	private final boolean fair;
+
+	/** 公平模式下排队等待的线程，按到达的顺序排列。只在持有 lock 时访问。*/
+	private final ArrayDeque<Waiter> queue = new ArrayDeque<Waiter>();
+
+	/** 公平模式下一个排队的线程。index 是交给它的资源，还没有交给它时为 -1。*/
+	private static class Waiter {
+
+		final Condition ready;
+		int index = -1;
+
+		Waiter(Condition ready) {
+			this.ready = ready;
+		}
+	}
+
+	public BitmapPool(List<T> resources) {
+		this(resources, false);
+	}
+
+	/**
+	 * @param fair 为 true 时等待的线程按先后顺序取得资源，归还的资源直接交给排在最前面的线程
+	 */
+	public BitmapPool(List<T> resources, boolean fair) {
+		if (resources.isEmpty()) {
+			throw new IllegalArgumentException("No resources");
+		}
+		this.fair = fair;
+		this.resources = new ArrayList<T>(resources);
+		int size = this.resources.size();
+		this.words = (size + 63) >>> 6;
+		this.bits = new AtomicLongArray(words);
+		this.lastMask = (size & 63) == 0 ? -1L : (1L << (size & 63)) - 1;
+	}
+
+	public int capacity() {
+		return resources.size();
+	}
+
+	public boolean isFair() {
+		return fair;
+	}
+
+	/** 返回第 index 个资源。*/
+	public T get(int index) {
+		return resources.get(index);
+	}
+
+	/** 当前空闲的资源数，只是一个近似值。*/
+	public int available() {
+		int used = 0;
+		for (int i = 0; i < words; i++) {
+			used += Long.bitCount(bits.get(i));
+		}
+		return resources.size() - used;
+	}
+
+	/** 立即尝试取一个资源，返回它的编号；没有空闲的资源时返回 -1，不阻塞。公平模式下有线程在排队时也返回 -1。*/
+	public int tryAcquire() {
+		return fair && waiters.get() > 0 ? -1 : claim();
+	}
+
+	/** 用 CAS 占用一个空闲的资源，从亲和提示的字开始查找；没有空闲的资源时返回 -1。*/
+	private int claim() {
+		int start[] = hint.get();
+		for (int n = 0; n < words; n++) {
+			int word = start[0] + n;
+			if (word >= words) {
+				word -= words;
+			}
+			long mask = word == words - 1 ? lastMask : -1L;
+			long value;
+			while ((~(value = bits.get(word)) & mask) != 0) {
+				long bit = Long.lowestOneBit(~value & mask);
+				if (bits.compareAndSet(word, value, value | bit)) {
+					start[0] = word;
+					return (word << 6) + Long.numberOfTrailingZeros(bit);
+				}
+			}
+		}
+		return -1;
+	}
+
+	/** 取一个资源，没有空闲的资源时一直等待。*/
+	public int acquire() throws InterruptedException {
+		int index = tryAcquire();
+		if (index >= 0) {
+			return index;
+		}
+		return fair ? awaitInQueue(false, 0) : await(false, 0);
+	}
+
+	/** 取一个资源，最多等待 timeout；超时返回 -1。*/
+	public int acquire(long timeout, TimeUnit unit) throws InterruptedException {
+		int index = tryAcquire();
+		if (index >= 0) {
+			return index;
+		}
+		return fair ? awaitInQueue(true, unit.toNanos(timeout)) : await(true, unit.toNanos(timeout));
+	}
+
+	/**
+	 * 慢路径。先增加 waiters 再查找，归还资源的线程先清除位再读取 waiters，所以二者之中至少有一个能看到对方：
+	 * 要么这里找到了刚归还的资源，要么归还的线程发现有人等待并发出信号。
+	 */
+	private int await(boolean timed, long nanos) throws InterruptedException {
+		lock.lockInterruptibly();
+		waiters.incrementAndGet();
+		try {
+			int index;
+			while ((index = claim()) < 0) {
+				if (!timed) {
+					released.await();
+				} else if (nanos <= 0) {
+					return -1;
+				} else {
+					nanos = released.awaitNanos(nanos);
+				}
+			}
+			return index;
+		} finally {
+			waiters.decrementAndGet();
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * 公平模式的慢路径：排到队尾，等待归还的线程把资源交给自己。
+	 * 与 await() 一样，先增加 waiters 再查找，所以归还的线程清除位之后要么这里能找到，要么它会看到有人排队，
+	 * 在锁内重新占用一个空闲的资源交给队首的线程。只有排在队首时才自己查找，不抢在前面的线程之前。
+	 */
+	private int awaitInQueue(boolean timed, long nanos) throws InterruptedException {
+		lock.lockInterruptibly();
+		Waiter waiter = new Waiter(lock.newCondition());
+		waiters.incrementAndGet();
+		queue.add(waiter);
+		try {
+			if (queue.peek() == waiter) {
+				int index = claim();
+				if (index >= 0) {
+					queue.poll();
+					return index;
+				}
+			}
+			while (waiter.index < 0) {
+				if (!timed) {
+					waiter.ready.await();
+				} else if (nanos <= 0) {
+					queue.remove(waiter);
+					return -1;
+				} else {
+					nanos = waiter.ready.awaitNanos(nanos);
+				}
+			}
+			return waiter.index;
+		} catch (InterruptedException e) {
+			// 被中断之前可能已经有资源交给了这个线程，把它转交给下一个线程，不能丢失。
+			if (waiter.index >= 0) {
+				pass(waiter.index);
+			} else {
+				queue.remove(waiter);
+			}
+			throw e;
+		} finally {
+			waiters.decrementAndGet();
+			lock.unlock();
+		}
+	}
+
+	/** 把第 index 个资源交给队首的线程，队列为空时返回 false。必须持有 lock。*/
+	private boolean handOff(int index) {
+		Waiter waiter = queue.poll();
+		if (waiter == null) {
+			return false;
+		}
+		waiter.index = index;
+		waiter.ready.signal();
+		return true;
+	}
+
+	/** 把第 index 个资源交给队首的线程，没有线程排队时把它清除为空闲。必须持有 lock。*/
+	private void pass(int index) {
+		if (!handOff(index)) {
+			clear(index);
+		}
+	}
+
+	/** 归还第 index 个资源。归还一个没有被占用的资源会抛出 IllegalStateException。*/
+	public void release(int index) {
+		if (index < 0 || index >= resources.size()) {
+			throw new IndexOutOfBoundsException("index = " + index);
+		}
+		if (fair && waiters.get() > 0) {
+			if ((bits.get(index >>> 6) & (1L << (index & 63))) == 0) {
+				throw new IllegalStateException("Resource " + index + " is not acquired");
+			}
+			lock.lock();
+			try {
+				// 资源仍然标记为占用，直接转交给队首的线程。
+				if (handOff(index)) {
+					return;
+				}
+			} finally {
+				lock.unlock();
+			}
+		}
+
+		clear(index);
+		hint.get()[0] = index >>> 6;
+
+		if (waiters.get() > 0) {
+			lock.lock();
+			try {
+				if (!fair) {
+					released.signal();
+				} else if (!queue.isEmpty()) {
+					// 清除位之后才有线程排队，它可能没有看到这个资源。重新占用一个空闲的资源交给队首的线程。
+					int free = claim();
+					if (free >= 0) {
+						handOff(free);
+					}
+				}
+			} finally {
+				lock.unlock();
+			}
+		}
+	}
+
+	/** 把第 index 个资源的位清除为 0。*/
+	private void clear(int index) {
+		int word = index >>> 6;
+		long bit = 1L << (index & 63);
+		long value;
+		do {
+			value = bits.get(word);
+			if ((value & bit) == 0) {
+				throw new IllegalStateException("Resource " + index + " is not acquired");
+			}
+		} while (!bits.compareAndSet(word, value, value & ~bit));
+	}
+
+	/** Main_2 中 PrintQueue 的做法，作为对照。归还时也加了锁，否则结果不可信。*/
+	private static class LockedPool {
+
+		private final Semaphore semaphore;
+		private final boolean free[];
+		private final Lock lock = new ReentrantLock();
+
+		LockedPool(int size) {
+			semaphore = new Semaphore(size);
+			free = new boolean[size];
+			for (int i = 0; i < size; i++) {
+				free[i] = true;
+			}
+		}
+
+		int acquire() throws InterruptedException {
+			semaphore.acquire();
+			lock.lock();
+			try {
+				for (int i = 0; i < free.length; i++) {
+					if (free[i]) {
+						free[i] = false;
+						return i;
+					}
+				}
+				throw new IllegalStateException("No free resource after acquiring a permit");
+			} finally {
+				lock.unlock();
+			}
+		}
+
+		void release(int index) {
+			lock.lock();
+			try {
+				free[index] = true;
+			} finally {
+				lock.unlock();
+			}
+			semaphore.release();
+		}
+	}
+
+	/** 基准测试中的一个线程：反复取一个资源、做一点工作、再归还。记录等待资源的最长时间和运行中出现的异常。*/
+	private static abstract class Worker implements Runnable {
+
+		private final int operations;
+		private final int holders[];
+		private final CyclicBarrier start;
+		long checksum;
+		long maxWaitNanos;
+		Throwable failure;
+
+		Worker(int operations, int holders[], CyclicBarrier start) {
+			this.operations = operations;
+			this.holders = holders;
+			this.start = start;
+		}
+
+		abstract int acquire() throws InterruptedException;
+
+		abstract void release(int index);
+
+		@Override
+		public void run() {
+			try {
+				start.await();
+				for (int i = 0; i < operations; i++) {
+					long begin = System.nanoTime();
+					int index = acquire();
+					maxWaitNanos = Math.max(maxWaitNanos, System.nanoTime() - begin);
+					// 检查没有两个线程同时持有同一个资源。检查失败时也要归还资源，否则其他线程会永远阻塞在 acquire() 上。
+					try {
+						if (++holders[index] != 1) {
+							throw new IllegalStateException("Resource " + index + " acquired twice");
+						}
+						checksum += index;
+					} finally {
+						holders[index]--;
+						release(index);
+					}
+				}
+			} catch (Throwable e) {
+				failure = e;
+			}
+		}
+	}
+
+	/** 运行所有线程并等待它们结束，返回耗时。有线程失败时抛出 IllegalStateException，结束整个测试。*/
+	private static long run(int threads, Worker workers[]) throws InterruptedException {
+		Thread thread[] = new Thread[threads];
+		for (int i = 0; i < threads; i++) {
+			thread[i] = new Thread(workers[i], "Worker-" + i);
+			thread[i].start();
+		}
+		long start = System.nanoTime();
+		for (int i = 0; i < threads; i++) {
+			thread[i].join();
+		}
+		long nanos = System.nanoTime() - start;
+		for (int i = 0; i < threads; i++) {
+			if (workers[i].failure != null) {
+				throw new IllegalStateException(thread[i].getName() + " failed", workers[i].failure);
+			}
+		}
+		return nanos;
+	}
+
+	/** 所有线程中等待资源的最长时间（毫秒）。*/
+	private static double maxWait(Worker workers[]) {
+		long max = 0;
+		for (Worker worker : workers) {
+			max = Math.max(max, worker.maxWaitNanos);
+		}
+		return max / 1e6;
+	}
+
+	/**
+	 * 64 个线程分别用 Semaphore + Lock + boolean[]、非公平的 BitmapPool 和公平的 BitmapPool 反复取还资源，
+	 * 比较吞吐量和单个线程等待资源的最长时间。资源数分别是 3（与 Main_2 相同）和 256。
+	 */
+	public static void main(String[] args) throws InterruptedException {
+		final int THREADS = 64;
+		final int OPERATIONS = 20000;
+		final int ROUNDS = 5;
+
+		for (int size : new int[] {3, 256}) {
+			List<String> printers = new ArrayList<String>();
+			for (int i = 0; i < size; i++) {
+				printers.add("Printer-" + i);
+			}
+			for (int round = 0; round < ROUNDS; round++) {
+				final int holders[] = new int[size];
+				final LockedPool locked = new LockedPool(size);
+				CyclicBarrier start = new CyclicBarrier(THREADS);
+				Worker workers[] = new Worker[THREADS];
+				for (int i = 0; i < THREADS; i++) {
+					workers[i] = new Worker(OPERATIONS, holders, start) {
+						@Override
+						int acquire() throws InterruptedException {
+							return locked.acquire();
+						}
+
+						@Override
+						void release(int index) {
+							locked.release(index);
+						}
+					};
+				}
+				long lockedTime = run(THREADS, workers);
+				double lockedWait = maxWait(workers);
+
+				final BitmapPool<String> pool = new BitmapPool<String>(printers);
+				start = new CyclicBarrier(THREADS);
+				for (int i = 0; i < THREADS; i++) {
+					workers[i] = new Worker(OPERATIONS, holders, start) {
+						@Override
+						int acquire() throws InterruptedException {
+							return pool.acquire();
+						}
+
+						@Override
+						void release(int index) {
+							pool.release(index);
+						}
+					};
+				}
+				long poolTime = run(THREADS, workers);
+				double poolWait = maxWait(workers);
+
+				final BitmapPool<String> fairPool = new BitmapPool<String>(printers, true);
+				start = new CyclicBarrier(THREADS);
+				for (int i = 0; i < THREADS; i++) {
+					workers[i] = new Worker(OPERATIONS, holders, start) {
+						@Override
+						int acquire() throws InterruptedException {
+							return fairPool.acquire();
+						}
+
+						@Override
+						void release(int index) {
+							fairPool.release(index);
+						}
+					};
+				}
+				long fairTime = run(THREADS, workers);
+				double fairWait = maxWait(workers);
+
+				if (pool.available() != size || fairPool.available() != size) {
+					throw new IllegalStateException("Resources leaked: " + pool.available() + ", " + fairPool.available() + " of " + size + " available");
+				}
+				double total = (double) THREADS * OPERATIONS;
+				System.out.printf("Main: %d resources, round %d: Semaphore + Lock %.2f M ops/s (max wait %.1f ms), "
+						+ "BitmapPool %.2f M ops/s (max wait %.1f ms), fair BitmapPool %.2f M ops/s (max wait %.1f ms)\n", size, round,
+						total * 1e3 / lockedTime, lockedWait, total * 1e3 / poolTime, poolWait, total * 1e3 / fairTime, fairWait);
+			}
+		}
+	}
+}
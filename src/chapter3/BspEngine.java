@@ -0,0 +1,299 @@
+package chapter3;
+
+import java.util.concurrent.BrokenBarrierException;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * 基于 CyclicBarrier 的批量同步并行（BSP，bulk synchronous parallel）计算引擎。
+ *
+ * Main_4 只使用了一次 CyclicBarrier：Searcher 调用一次 await() 就结束了，Grouper 也只执行一次。而 CyclicBarrier 本来就是可以重复使用的，
+ * 正适合 Jacobi 迭代、PageRank 这类 “每一轮所有线程各算一部分，全部算完再进入下一轮” 的迭代算法。BspEngine 的做法是：
+ * 1、工作线程在 run() 开始时创建，每个线程固定负责一段行，整个计算过程中不再重新创建线程；
+ * 2、状态有两份（双缓冲）：每一轮从 current 读、往 next 写，线程之间不需要对同一个元素加锁；
+ * 3、每一轮各个线程算完后调用 await()，最后一个到达的线程执行屏障操作：合并各个线程的残差，判断是否收敛，交换两份状态，
+ *   记录这一轮的耗时。CyclicBarrier 保证屏障操作之前各线程的写入对屏障操作可见，屏障操作的写入对下一轮的所有线程可见；
+ * 4、每个线程记录自己在 await() 上等待的时间，等待时间长说明各段的工作量不均衡；
+ * 5、Kernel 抛出异常时，线程记下异常后照常到达屏障，屏障操作发现有异常就结束计算，run() 再抛出这个异常；
+ *   屏障操作抛出异常或线程被中断时屏障会损坏，其他线程因 BrokenBarrierException 退出。不使用 reset()：
+ *   reset() 之后还没到达屏障的线程会在新的一代上一直等下去。
+ *
+ * @author FrankTaylor <mailto:hubin@300.cn>
+ * @since 1.0
+ */
+public class BspEngine {
+
+	/** 每一轮对一段行的计算。*/
+	public interface Kernel {
+
+		/**
+		 * 根据 current 计算第 fromRow 到 toRow 行的新状态，写入 next，返回这一段的残差（例如新旧值之差的最大绝对值）。
+		 * 只能写 next 中属于这一段的元素。
+		 */
+		double compute(double current[], double next[], int fromRow, int toRow);
+	}
+
+	/** 计算的结果和统计信息。*/
+	public static class Result {
+
+		private final double state[];
+		private final int iterations;
+		private final boolean converged;
+		private final double residual;
+		private final long iterationNanos[];
+		private final long waitNanos[];
+
+		Result(double state[], int iterations, boolean converged, double residual, long iterationNanos[], long waitNanos[]) {
+			this.state = state;
+			this.iterations = iterations;
+			this.converged = converged;
+			this.residual = residual;
+			this.iterationNanos = iterationNanos;
+			this.waitNanos = waitNanos;
+		}
+
+		public double[] getState() {
+			return state;
+		}
+
+		public int getIterations() {
+			return iterations;
+		}
+
+		public boolean isConverged() {
+			return converged;
+		}
+
+		public double getResidual() {
+			return residual;
+		}
+
+		/** 第 i 轮的耗时（纳秒），从上一次屏障操作结束到这一次屏障操作开始。*/
+		public long getIterationNanos(int i) {
+			return iterationNanos[i];
+		}
+
+		/** 第 worker 个线程在 await() 上等待的总时间（纳秒）。*/
+		public long getWaitNanos(int worker) {
+			return waitNanos[worker];
+		}
+
+		public int getWorkers() {
+			return waitNanos.length;
+		}
+	}
+
+	private final int workers;
+	private final int rows;
+	private final int columns;
+	private final Kernel kernel;
+	private final double tolerance;
+
+	/**
+	 * @param workers 工作线程数
+	 * @param rows 状态的行数，每个线程分到连续的 rows / workers 行左右
+	 * @param columns 状态的列数
+	 * @param kernel 每一轮的计算
+	 * @param tolerance 所有段的残差的最大值不超过这个值时认为已经收敛
+	 */
+	public BspEngine(int workers, int rows, int columns, Kernel kernel, double tolerance) {
+		if (workers <= 0 || workers > rows) {
+			throw new IllegalArgumentException("workers = " + workers + ", rows = " + rows);
+		}
+		this.workers = workers;
+		this.rows = rows;
+		this.columns = columns;
+		this.kernel = kernel;
+		this.tolerance = tolerance;
+	}
+
+	/**
+	 * 从 initial 开始迭代，直到收敛或达到 maxIterations 轮。initial 不会被修改。
+	 * Kernel 抛出的 RuntimeException 和 Error 原样抛出，线程被中断时抛出 InterruptedException。
+	 */
+	public Result run(double initial[], int maxIterations) throws InterruptedException {
+		if (initial.length != rows * columns) {
+			throw new IllegalArgumentException("initial.length = " + initial.length + ", expected " + rows * columns);
+		}
+		Round round = new Round(initial.clone(), initial.clone(), maxIterations);
+		CyclicBarrier barrier = new CyclicBarrier(workers, round);
+
+		Thread threads[] = new Thread[workers];
+		Worker tasks[] = new Worker[workers];
+		for (int i = 0; i < workers; i++) {
+			int fromRow = (int) ((long) rows * i / workers);
+			int toRow = (int) ((long) rows * (i + 1) / workers);
+			tasks[i] = new Worker(i, fromRow, toRow, round, barrier);
+			threads[i] = new Thread(tasks[i], "BspWorker-" + i);
+		}
+		round.start = System.nanoTime();
+		for (Thread thread : threads) {
+			thread.start();
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+
+		Throwable failure = round.failure.get();
+		if (failure instanceof RuntimeException) {
+			throw (RuntimeException) failure;
+		} else if (failure instanceof Error) {
+			throw (Error) failure;
+		} else if (failure instanceof InterruptedException) {
+			throw (InterruptedException) failure;
+		} else if (failure != null) {
+			throw new IllegalStateException(failure);
+		}
+
+		long waitNanos[] = new long[workers];
+		for (int i = 0; i < workers; i++) {
+			waitNanos[i] = tasks[i].waitNanos;
+		}
+		long iterationNanos[] = new long[round.iteration];
+		System.arraycopy(round.iterationNanos, 0, iterationNanos, 0, round.iteration);
+		return new Result(round.current, round.iteration, round.converged, round.residual, iterationNanos, waitNanos);
+	}
+
+	/**
+	 * 屏障操作以及所有线程共享的状态。这些字段只在屏障操作中被修改，CyclicBarrier 保证了它们的可见性，所以不需要 volatile。
+	 */
+	private class Round implements Runnable {
+
+		double current[];
+		double next[];
+		final int maxIterations;
+
+		/** 每个线程这一轮的残差，每个线程的槽位之间隔开 8 个 double（64 字节），避免伪共享。*/
+		final double residuals[] = new double[workers * 8];
+
+		final long iterationNanos[];
+		int iteration;
+		boolean converged;
+		boolean done;
+		double residual;
+		long start;
+
+		/** 第一个出错的线程记下的异常。这个字段在屏障操作之外也会被修改，所以使用 AtomicReference。*/
+		final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+
+		Round(double current[], double next[], int maxIterations) {
+			this.current = current;
+			this.next = next;
+			this.maxIterations = maxIterations;
+			this.iterationNanos = new long[maxIterations];
+			this.done = maxIterations <= 0;
+		}
+
+		@Override
+		public void run() {
+			long now = System.nanoTime();
+			iterationNanos[iteration++] = now - start;
+
+			residual = 0;
+			for (int i = 0; i < workers; i++) {
+				residual = Math.max(residual, residuals[i * 8]);
+			}
+
+			// 交换两份状态：这一轮写入的 next 成为下一轮读取的 current。
+			double temp[] = current;
+			current = next;
+			next = temp;
+
+			converged = residual <= tolerance;
+			done = converged || iteration >= maxIterations || failure.get() != null;
+			start = System.nanoTime();
+		}
+	}
+
+	private class Worker implements Runnable {
+
+		private final int index;
+		private final int fromRow, toRow;
+		private final Round round;
+		private final CyclicBarrier barrier;
+		long waitNanos;
+
+		Worker(int index, int fromRow, int toRow, Round round, CyclicBarrier barrier) {
+			this.index = index;
+			this.fromRow = fromRow;
+			this.toRow = toRow;
+			this.round = round;
+			this.barrier = barrier;
+		}
+
+		@Override
+		public void run() {
+			try {
+				while (!round.done) {
+					double residual;
+					try {
+						residual = kernel.compute(round.current, round.next, fromRow, toRow);
+					} catch (Throwable e) {
+						// 照常到达屏障，由屏障操作结束计算，其他线程不会在 await() 上一直等待。
+						round.failure.compareAndSet(null, e);
+						residual = Double.NaN;
+					}
+					round.residuals[index * 8] = residual;
+
+					long start = System.nanoTime();
+					barrier.await();
+					waitNanos += System.nanoTime() - start;
+				}
+			} catch (BrokenBarrierException e) {
+				// 屏障是被其他线程弄坏的，原因由那个线程记下，这里直接退出。
+			} catch (Throwable e) {
+				// 被中断，或者这个线程执行的屏障操作抛出了异常。
+				round.failure.compareAndSet(null, e);
+			}
+		}
+	}
+
+	/**
+	 * 用 Jacobi 迭代求解矩形区域上的拉普拉斯方程：上边界的温度是 100，其他边界是 0，
+	 * 每个内部点的新值是上下左右四个点的平均值，直到任何一个点的变化都不超过 0.001。
+	 */
+	public static void main(String[] args) throws InterruptedException {
+		final int ROWS = 200;
+		final int COLUMNS = 200;
+		final int WORKERS = Math.min(ROWS, Runtime.getRuntime().availableProcessors());
+		final int MAX_ITERATIONS = 20000;
+
+		Kernel jacobi = new Kernel() {
+			@Override
+			public double compute(double current[], double next[], int fromRow, int toRow) {
+				double residual = 0;
+				for (int r = Math.max(1, fromRow); r < Math.min(ROWS - 1, toRow); r++) {
+					int base = r * COLUMNS;
+					for (int c = 1; c < COLUMNS - 1; c++) {
+						int i = base + c;
+						double value = 0.25 * (current[i - COLUMNS] + current[i + COLUMNS] + current[i - 1] + current[i + 1]);
+						residual = Math.max(residual, Math.abs(value - current[i]));
+						next[i] = value;
+					}
+				}
+				return residual;
+			}
+		};
+
+		double initial[] = new double[ROWS * COLUMNS];
+		for (int c = 0; c < COLUMNS; c++) {
+			initial[c] = 100;
+		}
+
+		BspEngine engine = new BspEngine(WORKERS, ROWS, COLUMNS, jacobi, 0.001);
+		long start = System.nanoTime();
+		Result result = engine.run(initial, MAX_ITERATIONS);
+		long elapsed = System.nanoTime() - start;
+
+		System.out.printf("Main: %s after %d iterations in %d ms, residual %.6f\n", result.isConverged() ? "Converged" : "Stopped",
+				result.getIterations(), elapsed / 1000000, result.getResidual());
+		for (int i = 0; i < result.getIterations(); i += Math.max(1, result.getIterations() / 5)) {
+			System.out.printf("Main: Iteration %d: %.1f us\n", i, result.getIterationNanos(i) / 1e3);
+		}
+		for (int i = 0; i < result.getWorkers(); i++) {
+			System.out.printf("Main: Worker %d waited %d ms at the barrier (%.1f us per iteration)\n", i,
+					result.getWaitNanos(i) / 1000000, result.getWaitNanos(i) / 1e3 / result.getIterations());
+		}
+		System.out.printf("Main: Center value %.4f\n", result.getState()[(ROWS / 2) * COLUMNS + COLUMNS / 2]);
+	}
+}
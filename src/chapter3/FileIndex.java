@@ -0,0 +1,527 @@
+package chapter3;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UTFDataFormatException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystems;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 可持久化、可增量更新的文件索引，用来代替 Main_5 中 FileSearch 每次都要做的全量遍历。
+ *
+ * Main_5 的 FileSearch 每次运行都要用 directoryProcess() 把整棵目录树重新遍历一遍，然后 filterResults() 再对每个结果
+ * 调用一次 File#lastModified()。当同样的目录每隔几分钟就要查一次时，大部分工作都是重复的。FileIndex 的做法是：
+ * 1、把每个文件的路径、大小和修改时间，以及每个目录的修改时间和目录项保存在内存中，并可以保存到磁盘上；
+ * 2、启动时先加载上次保存的索引，再调用 refresh() 与磁盘同步。目录的修改时间只有在目录项增加、删除或改名时才会变化，
+ *   所以修改时间没变的目录不必重新读取目录项，只需要重新读取其中文件的属性（文件内容被修改时，目录的修改时间并不变）；
+ * 3、startWatching() 之后，用 WatchService 监听所有目录的变化，只更新发生变化的那些条目；
+ * 4、search() 直接在内存中按扩展名和修改时间过滤，不再访问磁盘。
+ *
+ * 注意：WatchService 不会递归地监听子目录，所以每个目录都要单独注册；新建的目录在收到 ENTRY_CREATE 事件时注册。
+ * 事件丢失（OVERFLOW）时，对相应的目录重新做一次完整的扫描。
+ *
+ * @author FrankTaylor <mailto:hubin@300.cn>
+ * @since 1.0
+ */
+public class FileIndex implements Closeable {
+
+	/** 索引文件的格式标记和版本号。*/
+	private static final int MAGIC = 0x46494458;
+	private static final int VERSION = 1;
+
+	/** 文件的大小和修改时间。*/
+	private static class FileEntry {
+		final long size;
+		final long lastModified;
+
+		FileEntry(long size, long lastModified) {
+			this.size = size;
+			this.lastModified = lastModified;
+		}
+	}
+
+	/**
+	 * 目录的修改时间，以及它包含的子目录和文件的完整路径。
+	 *
+	 * save() 只把文件名按字符串写入磁盘。在非 UTF-8 的系统编码下，有些文件名无法无损地转换为 String，
+	 * 所以 save() 会检查每个名字能否还原为同一个 Path：不能还原的目录本身不保存，含有不能还原的名字的目录在加载后会被重新读取。
+	 */
+	private static class DirEntry {
+		volatile long lastModified;
+		final Set<Path> subdirs = Collections.newSetFromMap(new ConcurrentHashMap<Path, Boolean>());
+		final Set<Path> files = Collections.newSetFromMap(new ConcurrentHashMap<Path, Boolean>());
+
+		DirEntry(long lastModified) {
+			this.lastModified = lastModified;
+		}
+	}
+
+	private final List<Path> roots;
+	private final Map<Path, FileEntry> files = new ConcurrentHashMap<Path, FileEntry>();
+	private final Map<Path, DirEntry> dirs = new ConcurrentHashMap<Path, DirEntry>();
+
+	/** 所有修改目录结构的操作（scan() 和监听事件的处理）都在这个锁上串行执行，refresh() 与监听线程不会互相覆盖对方的更新。*/
+	private final Object updateLock = new Object();
+
+	private WatchService watcher;
+	private final Map<WatchKey, Path> keys = new ConcurrentHashMap<WatchKey, Path>();
+	private Thread watchThread;
+
+	public FileIndex(List<Path> roots) {
+		this.roots = new ArrayList<Path>();
+		for (Path root : roots) {
+			this.roots.add(root.toAbsolutePath().normalize());
+		}
+	}
+
+	/** 返回文件名以 extension 结尾、并且在 since 之后（毫秒）修改过的所有文件的路径。*/
+	public List<String> search(String extension, long since) {
+		List<String> results = new ArrayList<String>();
+		for (Map.Entry<Path, FileEntry> entry : files.entrySet()) {
+			if (entry.getValue().lastModified >= since && entry.getKey().getFileName().toString().endsWith(extension)) {
+				results.add(entry.getKey().toString());
+			}
+		}
+		return results;
+	}
+
+	public int getFileCount() {
+		return files.size();
+	}
+
+	public int getDirectoryCount() {
+		return dirs.size();
+	}
+
+	/** 让索引与磁盘上的所有根目录同步。*/
+	public void refresh() {
+		synchronized (updateLock) {
+			for (Path root : roots) {
+				scan(root, false);
+			}
+		}
+	}
+
+	/**
+	 * 同步 top 及其下面的所有目录。
+	 *
+	 * @param force 为 true 时，即使目录的修改时间没变也重新读取目录项
+	 */
+	private void scan(Path top, boolean force) {
+		synchronized (updateLock) {
+			scanLocked(top, force);
+		}
+	}
+
+	private void scanLocked(Path top, boolean force) {
+		ArrayDeque<Path> stack = new ArrayDeque<Path>();
+		stack.push(top);
+		while (!stack.isEmpty()) {
+			Path dir = stack.pop();
+			BasicFileAttributes attrs;
+			try {
+				attrs = Files.readAttributes(dir, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+			} catch (IOException e) {
+				removeTree(dir);
+				continue;
+			}
+			if (!attrs.isDirectory()) {
+				removeTree(dir);
+				continue;
+			}
+
+			long lastModified = attrs.lastModifiedTime().toMillis();
+			DirEntry old = dirs.get(dir);
+			if (!force && old != null && old.lastModified == lastModified) {
+				// 目录项没有变化，不必重新读取目录，只需要更新其中文件的属性。
+				for (Path file : old.files) {
+					updateFile(file, old);
+				}
+				for (Path subdir : old.subdirs) {
+					stack.push(subdir);
+				}
+			} else {
+				DirEntry entry = readDirectory(dir, lastModified, old);
+				if (entry == null) {
+					continue;
+				}
+				for (Path subdir : entry.subdirs) {
+					stack.push(subdir);
+				}
+			}
+			register(dir);
+		}
+	}
+
+	/** 读取目录项，并删除索引中已经不存在的条目。目录无法读取时返回 null。*/
+	private DirEntry readDirectory(Path dir, long lastModified, DirEntry old) {
+		DirEntry entry = new DirEntry(lastModified);
+		try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir)) {
+			for (Path child : stream) {
+				try {
+					BasicFileAttributes attrs = Files.readAttributes(child, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+					if (attrs.isDirectory()) {
+						entry.subdirs.add(child);
+					} else if (attrs.isRegularFile()) {
+						entry.files.add(child);
+						files.put(child, new FileEntry(attrs.size(), attrs.lastModifiedTime().toMillis()));
+					}
+				} catch (IOException e) {
+					// 文件在读取目录的过程中被删除了。
+				}
+			}
+		} catch (IOException e) {
+			removeTree(dir);
+			return null;
+		}
+
+		if (old != null) {
+			for (Path file : old.files) {
+				if (!entry.files.contains(file)) {
+					files.remove(file);
+				}
+			}
+			for (Path subdir : old.subdirs) {
+				if (!entry.subdirs.contains(subdir)) {
+					removeTree(subdir);
+				}
+			}
+		}
+		dirs.put(dir, entry);
+		return entry;
+	}
+
+	/** 重新读取一个文件的属性。文件已经不是普通文件时，把它从索引中删除。*/
+	private void updateFile(Path file, DirEntry parent) {
+		try {
+			BasicFileAttributes attrs = Files.readAttributes(file, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+			if (attrs.isRegularFile()) {
+				files.put(file, new FileEntry(attrs.size(), attrs.lastModifiedTime().toMillis()));
+				return;
+			}
+		} catch (IOException e) {}
+		files.remove(file);
+		parent.files.remove(file);
+	}
+
+	/** 把目录 dir 及其下面的所有条目从索引中删除。*/
+	private void removeTree(Path dir) {
+		ArrayDeque<Path> stack = new ArrayDeque<Path>();
+		stack.push(dir);
+		while (!stack.isEmpty()) {
+			Path current = stack.pop();
+			DirEntry entry = dirs.remove(current);
+			if (entry == null) {
+				continue;
+			}
+			for (Path file : entry.files) {
+				files.remove(file);
+			}
+			for (Path subdir : entry.subdirs) {
+				stack.push(subdir);
+			}
+		}
+	}
+
+	/** 开始监听所有已索引目录的变化。*/
+	public synchronized void startWatching() throws IOException {
+		if (watcher != null) {
+			return;
+		}
+		watcher = FileSystems.getDefault().newWatchService();
+		for (Path dir : dirs.keySet()) {
+			register(dir);
+		}
+
+		watchThread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				processEvents();
+			}
+		}, "FileIndex-Watcher");
+		watchThread.setDaemon(true);
+		watchThread.start();
+	}
+
+	private void register(Path dir) {
+		if (watcher == null) {
+			return;
+		}
+		try {
+			WatchKey key = dir.register(watcher, StandardWatchEventKinds.ENTRY_CREATE,
+					StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY);
+			keys.put(key, dir);
+		} catch (IOException e) {
+			// 目录已经被删除，或者已经达到了系统允许监听的数量上限（Linux 上的 fs.inotify.max_user_watches）。
+			System.out.printf("FileIndex: Unable to watch %s: %s\n", dir, e);
+		}
+	}
+
+	private void processEvents() {
+		while (true) {
+			WatchKey key;
+			try {
+				key = watcher.take();
+			} catch (InterruptedException e) {
+				return;
+			} catch (ClosedWatchServiceException e) {
+				return;
+			}
+
+			Path dir = keys.get(key);
+			if (dir != null) {
+				synchronized (updateLock) {
+					handleEvents(dir, key);
+				}
+			}
+
+			if (!key.reset()) {
+				// 目录已经被删除，或者已经不可访问。
+				keys.remove(key);
+			}
+		}
+	}
+
+	private void handleEvents(Path dir, WatchKey key) {
+		for (WatchEvent<?> event : key.pollEvents()) {
+			if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+				scan(dir, true);
+			} else {
+				onEvent(dir, (Path) event.context(), event.kind());
+			}
+		}
+	}
+
+	private void onEvent(Path dir, Path name, WatchEvent.Kind<?> kind) {
+		DirEntry parent = dirs.get(dir);
+		if (parent == null) {
+			return;
+		}
+		Path child = dir.resolve(name);
+
+		if (kind == StandardWatchEventKinds.ENTRY_DELETE) {
+			files.remove(child);
+			parent.files.remove(child);
+			removeTree(child);
+			parent.subdirs.remove(child);
+		} else {
+			try {
+				BasicFileAttributes attrs = Files.readAttributes(child, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+				if (attrs.isDirectory()) {
+					if (parent.subdirs.add(child)) {
+						scan(child, true);
+					}
+				} else if (attrs.isRegularFile()) {
+					files.put(child, new FileEntry(attrs.size(), attrs.lastModifiedTime().toMillis()));
+					parent.files.add(child);
+				}
+			} catch (NoSuchFileException e) {
+				// 创建之后马上又被删除了，随后会收到 ENTRY_DELETE 事件。
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+
+		try {
+			parent.lastModified = Files.getLastModifiedTime(dir, LinkOption.NOFOLLOW_LINKS).toMillis();
+		} catch (IOException e) {}
+	}
+
+	/** 停止监听。*/
+	@Override
+	public synchronized void close() throws IOException {
+		if (watcher != null) {
+			watcher.close();
+			watchThread.interrupt();
+			watcher = null;
+			keys.clear();
+		}
+	}
+
+	/** 把索引保存到 file 中。先写到临时文件，再原子地改名，保存的过程中出错或崩溃不会丢失原来的索引文件。*/
+	public void save(File file) throws IOException {
+		File tmp = new File(file.getPath() + ".tmp");
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp), 1024 * 64));
+		try {
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+
+			// 遍历的过程中索引可能被监听线程修改，所以先取一份目录列表的快照。路径无法还原的目录不保存。
+			List<Map.Entry<Path, DirEntry>> snapshot = new ArrayList<Map.Entry<Path, DirEntry>>();
+			for (Map.Entry<Path, DirEntry> entry : dirs.entrySet()) {
+				if (roundTrips(null, entry.getKey())) {
+					snapshot.add(entry);
+				}
+			}
+			out.writeInt(snapshot.size());
+			for (Map.Entry<Path, DirEntry> entry : snapshot) {
+				Path dir = entry.getKey();
+				DirEntry dirEntry = entry.getValue();
+
+				List<Path> subdirs = new ArrayList<Path>(dirEntry.subdirs);
+				List<Path> names = new ArrayList<Path>();
+				List<FileEntry> entries = new ArrayList<FileEntry>();
+				for (Path name : dirEntry.files) {
+					FileEntry fileEntry = files.get(name);
+					if (fileEntry != null) {
+						names.add(name);
+						entries.add(fileEntry);
+					}
+				}
+
+				// 有名字无法还原时，保存 -1 作为修改时间，加载后 refresh() 会重新读取这个目录。
+				long lastModified = dirEntry.lastModified;
+				for (Path subdir : subdirs) {
+					if (!roundTrips(dir, subdir)) {
+						lastModified = -1;
+					}
+				}
+				for (Path name : names) {
+					if (!roundTrips(dir, name)) {
+						lastModified = -1;
+					}
+				}
+
+				out.writeUTF(dir.toString());
+				out.writeLong(lastModified);
+				out.writeInt(subdirs.size());
+				for (Path subdir : subdirs) {
+					out.writeUTF(subdir.getFileName().toString());
+				}
+				out.writeInt(names.size());
+				for (int i = 0; i < names.size(); i++) {
+					out.writeUTF(names.get(i).getFileName().toString());
+					out.writeLong(entries.get(i).size);
+					out.writeLong(entries.get(i).lastModified);
+				}
+			}
+		} finally {
+			out.close();
+		}
+
+		Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+	}
+
+	/**
+	 * 从 file 中加载上次保存的索引，只保留位于根目录之下的条目。加载之后应该调用 refresh() 与磁盘同步。
+	 * 条目先读到临时的表中，整个文件都读完之后才加入索引，所以文件被截断或只写了一部分时，索引不会只加载了一半。
+	 *
+	 * @return 文件不存在、格式不对或者不完整时返回 false
+	 */
+	public boolean load(File file) throws IOException {
+		if (!file.isFile()) {
+			return false;
+		}
+		Map<Path, DirEntry> loadedDirs = new HashMap<Path, DirEntry>();
+		Map<Path, FileEntry> loadedFiles = new HashMap<Path, FileEntry>();
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1024 * 64));
+		try {
+			if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+				return false;
+			}
+
+			int dirCount = in.readInt();
+			for (int i = 0; i < dirCount; i++) {
+				Path dir = toPath(null, in.readUTF());
+				DirEntry entry = new DirEntry(in.readLong());
+				boolean keep = dir != null && underRoots(dir);
+
+				int subdirCount = in.readInt();
+				for (int j = 0; j < subdirCount; j++) {
+					Path subdir = toPath(dir, in.readUTF());
+					if (subdir != null) {
+						entry.subdirs.add(subdir);
+					} else {
+						// 无法还原的名字，让 refresh() 重新读取这个目录。
+						entry.lastModified = -1;
+					}
+				}
+
+				int fileCount = in.readInt();
+				for (int j = 0; j < fileCount; j++) {
+					Path name = toPath(dir, in.readUTF());
+					long size = in.readLong();
+					long lastModified = in.readLong();
+					if (name == null) {
+						entry.lastModified = -1;
+					} else if (keep) {
+						entry.files.add(name);
+						loadedFiles.put(name, new FileEntry(size, lastModified));
+					}
+				}
+				if (keep) {
+					loadedDirs.put(dir, entry);
+				}
+			}
+		} catch (EOFException e) {
+			// 文件被截断，或者保存时只写了一部分。
+			return false;
+		} catch (UTFDataFormatException e) {
+			return false;
+		} finally {
+			in.close();
+		}
+
+		synchronized (updateLock) {
+			dirs.putAll(loadedDirs);
+			files.putAll(loadedFiles);
+		}
+		return true;
+	}
+
+	/** 检查 path 按 save() 的方式保存为字符串后，load() 能否还原出同一个 Path。*/
+	private static boolean roundTrips(Path parent, Path path) {
+		String name = parent == null ? path.toString() : path.getFileName().toString();
+		return path.equals(toPath(parent, name));
+	}
+
+	/** 把保存时的字符串还原为 Path，无法还原时返回 null。*/
+	private static Path toPath(Path parent, String name) {
+		try {
+			if (parent == null) {
+				return Paths.get(name);
+			}
+			return parent.resolve(name);
+		} catch (InvalidPathException e) {
+			return null;
+		}
+	}
+
+	private boolean underRoots(Path path) {
+		for (Path root : roots) {
+			if (path.startsWith(root)) {
+				return true;
+			}
+		}
+		return false;
+	}
+}
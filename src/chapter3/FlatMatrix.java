@@ -0,0 +1,237 @@
+package chapter3;
+
+import java.util.Random;
+import java.util.concurrent.BrokenBarrierException;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 连续存放的整数矩阵，以及按缓存大小分块的并行查找，用来代替 Main_4 中的 MatrixMock 和 Searcher。
+ *
+ * MatrixMock 用 int[][] 保存矩阵，每一行都是堆上一个单独的数组，Searcher 每处理一行都要调用一次带边界检查的 getRow()。
+ * FlatMatrix 把所有行首尾相接地放在一个 int[] 中（按行存储），第 i 行从 i * columns 开始：
+ * 1、count() 是一个没有分支、也没有条件表达式的计数循环，只有异或、取负、移位和加法，JIT 可以把它自动向量化
+ *   （在 JDK 17 上实测，条件表达式 counter += (data[i] == number) ? 1 : 0 的写法没有被向量化，速度只有它的三分之一左右）；
+ *   Vector API 只在较新的 JDK 中以孵化模块的形式提供，这里不使用；
+ * 2、查找时不再给每个线程分配固定的一段行，而是把矩阵切成大小约为 BLOCK_BYTES（256 KB，与常见的 L2 缓存相当）的行块，
+ *   线程通过一个 AtomicInteger 依次领取下一个行块，快的线程多做一些，不会出现一个线程等其他线程的情况。
+ *
+ * @author FrankTaylor <mailto:hubin@300.cn>
+ * @since 1.0
+ */
+public class FlatMatrix {
+
+	/** 一个行块的目标大小（字节）。*/
+	static final int BLOCK_BYTES = 1024 * 256;
+
+	private final int data[];
+	private final int rows;
+	private final int columns;
+
+	/** 生成一个 rows 行 columns 列、由 0~9 组成的随机矩阵，并输出 number 出现的次数。*/
+	public FlatMatrix(int rows, int columns, int number) {
+		if ((long) rows * columns > Integer.MAX_VALUE) {
+			throw new IllegalArgumentException("Matrix too large: " + rows + " x " + columns);
+		}
+		this.rows = rows;
+		this.columns = columns;
+		this.data = new int[rows * columns];
+
+		int counter = 0;
+		Random random = new Random();
+		for (int i = 0; i < data.length; i++) {
+			data[i] = random.nextInt(10);
+			if (data[i] == number) {
+				counter++;
+			}
+		}
+		System.out.printf("FlatMatrix: There are %d ocurrences of number %d in generated data.\n", counter, number);
+	}
+
+	public int getRows() {
+		return rows;
+	}
+
+	public int getColumns() {
+		return columns;
+	}
+
+	/** 返回第 row 行第 column 列的值。*/
+	public int get(int row, int column) {
+		if (row < 0 || row >= rows || column < 0 || column >= columns) {
+			throw new IndexOutOfBoundsException("row = " + row + ", column = " + column);
+		}
+		return data[row * columns + column];
+	}
+
+	/** 每个行块的行数：至少 1 行。*/
+	public int getBlockRows() {
+		return Math.max(1, BLOCK_BYTES / (columns * 4));
+	}
+
+	public int getBlockCount() {
+		int blockRows = getBlockRows();
+		return (rows + blockRows - 1) / blockRows;
+	}
+
+	/** 统计第 row 行中 number 出现的次数。*/
+	public int countRow(int row, int number) {
+		return count(data, row * columns, (row + 1) * columns, number);
+	}
+
+	/** 统计第 block 个行块中每一行 number 出现的次数，保存到 results 中对应行的位置，返回这个行块的总数。*/
+	public int countBlock(int block, int number, int results[]) {
+		int blockRows = getBlockRows();
+		int first = block * blockRows;
+		int last = Math.min(rows, first + blockRows);
+		int total = 0;
+		for (int row = first; row < last; row++) {
+			int counter = count(data, row * columns, (row + 1) * columns, number);
+			results[row] = counter;
+			total += counter;
+		}
+		return total;
+	}
+
+	/**
+	 * 统计第 block 个行块中每个值出现的次数：值 v 在 [0, bound) 之间时 counts[offset + v] 加 1，否则 counts[offset + bound] 加 1。
+	 * 一次扫描就能回答任意多个值的查询。
+	 */
+	public void histogramBlock(int block, int counts[], int offset, int bound) {
+		int blockRows = getBlockRows();
+		int from = block * blockRows * columns;
+		int to = Math.min(rows, (block + 1) * blockRows) * columns;
+		for (int i = from; i < to; i++) {
+			int value = data[i];
+			// 把 value 当作无符号数比较，负数也会被归入 “其他”。
+			counts[offset + (value + Integer.MIN_VALUE < bound + Integer.MIN_VALUE ? value : bound)]++;
+		}
+	}
+
+	/**
+	 * 统计 data 中下标 from 到 to 之间等于 number 的元素个数。
+	 * x = data[i] ^ number 不为 0 时，x | -x 的符号位一定是 1，所以 (x | -x) >>> 31 恰好是 “不相等” 的个数。
+	 */
+	static int count(int data[], int from, int to, int number) {
+		int different = 0;
+		for (int i = from; i < to; i++) {
+			int x = data[i] ^ number;
+			different += (x | -x) >>> 31;
+		}
+		return (to - from) - different;
+	}
+
+	/** 反复领取下一个行块并统计，直到没有剩下的行块，然后在 barrier 上等待其他线程。*/
+	private static class BlockSearcher implements Runnable {
+
+		private final FlatMatrix matrix;
+		private final AtomicInteger nextBlock;
+		private final int number;
+		private final int results[];
+		private final CyclicBarrier barrier;
+		private final int rounds;
+
+		BlockSearcher(FlatMatrix matrix, AtomicInteger nextBlock, int number, int results[], CyclicBarrier barrier, int rounds) {
+			this.matrix = matrix;
+			this.nextBlock = nextBlock;
+			this.number = number;
+			this.results = results;
+			this.barrier = barrier;
+			this.rounds = rounds;
+		}
+
+		@Override
+		public void run() {
+			int blocks = matrix.getBlockCount();
+			try {
+				for (int round = 0; round < rounds; round++) {
+					int block;
+					while ((block = nextBlock.getAndIncrement()) < blocks) {
+						matrix.countBlock(block, number, results);
+					}
+					barrier.await();
+				}
+			} catch (InterruptedException e) {
+				e.printStackTrace();
+			} catch (BrokenBarrierException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+	/**
+	 * 每一轮所有线程都到达屏障后执行：合计每行的结果，输出这一轮的耗时和扫描速度，再为下一轮重置行块计数器。
+	 * CyclicBarrier 在执行完屏障操作之后才放行等待的线程，所以重置计数器是安全的。
+	 */
+	private static class RoundGrouper implements Runnable {
+
+		private final FlatMatrix matrix;
+		private final AtomicInteger nextBlock;
+		private final int results[];
+		private long start = System.nanoTime();
+		private int round;
+
+		RoundGrouper(FlatMatrix matrix, AtomicInteger nextBlock, int results[]) {
+			this.matrix = matrix;
+			this.nextBlock = nextBlock;
+			this.results = results;
+		}
+
+		@Override
+		public void run() {
+			long elapsed = System.nanoTime() - start;
+			long total = 0;
+			for (int counter : results) {
+				total += counter;
+			}
+			double bytes = (double) matrix.getRows() * matrix.getColumns() * 4;
+			System.out.printf("Grouper: Round %d: total %d, %.2f ms, %.2f GB/s\n", round++, total, elapsed / 1e6, bytes / elapsed);
+
+			nextBlock.set(0);
+			start = System.nanoTime();
+		}
+	}
+
+	/** 与 Main_4 同样的查找：先用 int[][] 顺序扫描三遍作为对照，再用分块的并行查找运行若干轮。*/
+	public static void main(String[] args) {
+		final int ROWS = 10000;
+		final int NUMBERS = 1000;
+		final int SEARCH = 5;
+		final int PARTICIPANTS = Runtime.getRuntime().availableProcessors();
+		final int ROUNDS = 10;
+
+		FlatMatrix matrix = new FlatMatrix(ROWS, NUMBERS, SEARCH);
+
+		// 对照：与 MatrixMock 相同的 int[][] 布局和扫描方式。
+		int rowsData[][] = new int[ROWS][NUMBERS];
+		for (int i = 0; i < ROWS; i++) {
+			for (int j = 0; j < NUMBERS; j++) {
+				rowsData[i][j] = matrix.get(i, j);
+			}
+		}
+		for (int round = 0; round < 3; round++) {
+			long start = System.nanoTime();
+			long total = 0;
+			for (int i = 0; i < ROWS; i++) {
+				int row[] = rowsData[i];
+				int counter = 0;
+				for (int j = 0; j < row.length; j++) {
+					if (row[j] == SEARCH) {
+						counter++;
+					}
+				}
+				total += counter;
+			}
+			long elapsed = System.nanoTime() - start;
+			System.out.printf("Main: int[][] scan: total %d, %.2f ms, %.2f GB/s\n", total, elapsed / 1e6, ROWS * NUMBERS * 4.0 / elapsed);
+		}
+
+		System.out.printf("Main: %d threads, %d blocks of %d rows\n", PARTICIPANTS, matrix.getBlockCount(), matrix.getBlockRows());
+		int results[] = new int[ROWS];
+		AtomicInteger nextBlock = new AtomicInteger();
+		CyclicBarrier barrier = new CyclicBarrier(PARTICIPANTS, new RoundGrouper(matrix, nextBlock, results));
+		for (int i = 0; i < PARTICIPANTS; i++) {
+			new Thread(new BlockSearcher(matrix, nextBlock, SEARCH, results, barrier, ROUNDS), "Searcher-" + i).start();
+		}
+	}
+}
@@ -0,0 +1,232 @@
+package chapter3;
+
+import java.util.concurrent.BrokenBarrierException;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 一次扫描回答多个值的查询：Main_4 每扫描一遍矩阵只能统计一个数字（SEARCH），要统计 K 个数字就要扫描 K 遍。
+ *
+ * HistogramSearch 让每个 Searcher 线程在扫描时统计所有值出现的次数（直方图），保存在这个线程自己的计数表中；
+ * 所有线程都到达 CyclicBarrier 之后，由屏障操作（Grouper）把各个线程的计数表相加。之后任意多个值的查询都只是查表。
+ *
+ * 每个线程的计数表前后各留出 PADDING 个 int（64 字节，一个缓存行）的空白，所以即使两个线程的计数表在堆上紧挨着，
+ * 频繁更新的计数器也不会落在同一个缓存行中，不会出现伪共享（false sharing）。
+ *
+ * 值的范围是 [0, bound)，超出这个范围的值统一计入 “其他”，用 countOther() 查询；
+ * 这些值各自的次数并没有统计，所以查询范围以外的值时 count() 抛出 IllegalArgumentException，而不是返回 0。
+ *
+ * @author FrankTaylor <mailto:hubin@300.cn>
+ * @since 1.0
+ */
+public class HistogramSearch {
+
+	/** 计数表两端的空白（int 的个数），64 字节。*/
+	static final int PADDING = 16;
+
+	/** 每个线程一个计数表，下标 PADDING + v 是值 v 的计数，PADDING + bound 是 “其他” 的计数。*/
+	private final int tables[][];
+	private final int bound;
+	private final long totals[];
+
+	public HistogramSearch(int threads, int bound) {
+		this.bound = bound;
+		this.tables = new int[threads][PADDING + bound + 1 + PADDING];
+		this.totals = new long[bound + 1];
+	}
+
+	/** 第 thread 个线程的计数表。*/
+	int[] table(int thread) {
+		return tables[thread];
+	}
+
+	/** 合并所有线程的计数表，并清空它们以便下一次扫描。由屏障操作调用。*/
+	void merge() {
+		for (int v = 0; v <= bound; v++) {
+			long sum = 0;
+			for (int table[] : tables) {
+				sum += table[PADDING + v];
+				table[PADDING + v] = 0;
+			}
+			totals[v] = sum;
+		}
+	}
+
+	/**
+	 * 返回最近一次扫描中 value 出现的次数。
+	 *
+	 * @throws IllegalArgumentException value 不在 [0, bound) 之间
+	 */
+	public long count(int value) {
+		if (value < 0 || value >= bound) {
+			throw new IllegalArgumentException("value = " + value + ", out of [0, " + bound + ")");
+		}
+		return totals[value];
+	}
+
+	/** 返回最近一次扫描中不在 [0, bound) 之间的值出现的总次数。*/
+	public long countOther() {
+		return totals[bound];
+	}
+
+	/** 返回最近一次扫描中每个查询值出现的次数。*/
+	public long[] count(int values[]) {
+		long result[] = new long[values.length];
+		for (int i = 0; i < values.length; i++) {
+			result[i] = count(values[i]);
+		}
+		return result;
+	}
+
+	/** 领取行块并更新自己的计数表，然后在屏障上等待。*/
+	private static class Searcher implements Runnable {
+
+		private final FlatMatrix matrix;
+		private final AtomicInteger nextBlock;
+		private final int table[];
+		private final int bound;
+		private final CyclicBarrier barrier;
+
+		Searcher(FlatMatrix matrix, AtomicInteger nextBlock, int table[], int bound, CyclicBarrier barrier) {
+			this.matrix = matrix;
+			this.nextBlock = nextBlock;
+			this.table = table;
+			this.bound = bound;
+			this.barrier = barrier;
+		}
+
+		@Override
+		public void run() {
+			int blocks = matrix.getBlockCount();
+			int block;
+			while ((block = nextBlock.getAndIncrement()) < blocks) {
+				matrix.histogramBlock(block, table, PADDING, bound);
+			}
+			try {
+				barrier.await();
+			} catch (InterruptedException e) {
+				e.printStackTrace();
+			} catch (BrokenBarrierException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+	/** 对照：与 Searcher 相同的分块并行查找，但每个查询值各扫描一遍矩阵。第 k 个值的行块从 nextBlocks[k] 领取。*/
+	private static class ValueSearcher implements Runnable {
+
+		private final FlatMatrix matrix;
+		private final AtomicInteger nextBlocks[];
+		private final int queries[];
+		private final int results[];
+		private final long counts[];
+		private final CyclicBarrier barrier;
+
+		ValueSearcher(FlatMatrix matrix, AtomicInteger nextBlocks[], int queries[], int results[], long counts[], CyclicBarrier barrier) {
+			this.matrix = matrix;
+			this.nextBlocks = nextBlocks;
+			this.queries = queries;
+			this.results = results;
+			this.counts = counts;
+			this.barrier = barrier;
+		}
+
+		@Override
+		public void run() {
+			int blocks = matrix.getBlockCount();
+			for (int k = 0; k < queries.length; k++) {
+				int block;
+				while ((block = nextBlocks[k].getAndIncrement()) < blocks) {
+					counts[k] += matrix.countBlock(block, queries[k], results);
+				}
+			}
+			try {
+				barrier.await();
+			} catch (InterruptedException e) {
+				e.printStackTrace();
+			} catch (BrokenBarrierException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+	/** 合并计数表，并回答查询。*/
+	private static class Grouper implements Runnable {
+
+		private final HistogramSearch search;
+		private final int queries[];
+		private final long start;
+
+		Grouper(HistogramSearch search, int queries[], long start) {
+			this.search = search;
+			this.queries = queries;
+			this.start = start;
+		}
+
+		@Override
+		public void run() {
+			search.merge();
+			long elapsed = System.nanoTime() - start;
+			long counts[] = search.count(queries);
+			StringBuilder sb = new StringBuilder();
+			for (int i = 0; i < queries.length; i++) {
+				sb.append(queries[i]).append('=').append(counts[i]).append(i < queries.length - 1 ? ", " : "");
+			}
+			System.out.printf("Grouper: %d queries in one scan, %.2f ms: %s, other=%d\n", queries.length, elapsed / 1e6, sb, search.countOther());
+		}
+	}
+
+	/**
+	 * 统计 0~9 每个数字出现的次数：先用同样多的线程、同样的分块并行查找，每个数字扫描一遍作为对照，再用直方图扫描一遍。
+	 * 两者的计时都从启动线程之前开始，到屏障操作执行时结束。
+	 */
+	public static void main(String[] args) throws InterruptedException {
+		final int ROWS = 10000;
+		final int NUMBERS = 1000;
+		final int BOUND = 10;
+		final int PARTICIPANTS = Runtime.getRuntime().availableProcessors();
+
+		FlatMatrix matrix = new FlatMatrix(ROWS, NUMBERS, 5);
+		final int queries[] = new int[BOUND];
+		for (int i = 0; i < BOUND; i++) {
+			queries[i] = i;
+		}
+
+		// 对照：每个值扫描一遍，每一遍都由 PARTICIPANTS 个线程分块并行完成。
+		AtomicInteger nextBlocks[] = new AtomicInteger[BOUND];
+		for (int k = 0; k < BOUND; k++) {
+			nextBlocks[k] = new AtomicInteger();
+		}
+		int results[] = new int[ROWS];
+		final long counts[][] = new long[PARTICIPANTS][BOUND];
+		final long start = System.nanoTime();
+		CyclicBarrier scans = new CyclicBarrier(PARTICIPANTS, new Runnable() {
+			@Override
+			public void run() {
+				long elapsed = System.nanoTime() - start;
+				long total = 0;
+				for (long searcher[] : counts) {
+					for (long count : searcher) {
+						total += count;
+					}
+				}
+				System.out.printf("Main: %d scans, one per value, %d threads: %.2f ms, total %d\n", queries.length, counts.length, elapsed / 1e6, total);
+			}
+		});
+		Thread threads[] = new Thread[PARTICIPANTS];
+		for (int i = 0; i < PARTICIPANTS; i++) {
+			threads[i] = new Thread(new ValueSearcher(matrix, nextBlocks, queries, results, counts[i], scans), "ValueSearcher-" + i);
+			threads[i].start();
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+
+		HistogramSearch search = new HistogramSearch(PARTICIPANTS, BOUND);
+		AtomicInteger nextBlock = new AtomicInteger();
+		CyclicBarrier barrier = new CyclicBarrier(PARTICIPANTS, new Grouper(search, queries, System.nanoTime()));
+		for (int i = 0; i < PARTICIPANTS; i++) {
+			new Thread(new Searcher(matrix, nextBlock, search.table(i), BOUND, barrier), "Searcher-" + i).start();
+		}
+	}
+}
@@ -43,23 +43,6 @@ public class Main_4 {
         }
 	}
 	
-	/** 用 Results 类保存在矩阵中每行找到指定数字的次数。*/
-    private static class Results {
-        private int data[];
-
-        public Results(int size) {
-            this.data = new int[size];
-        }
-
-        public void setData(int position, int value) {
-            data[position] = value;
-        }
-
-        public int[] getData() {
-            return data;
-        }
-    }
-    
     /** 实现任务类 Searcher 。它在随机数矩阵指定的行中查找某个数。*/
     private static class Searcher implements Runnable {
         
@@ -68,17 +51,24 @@ public class Main_4 {
         private int lastRow;
         
         private MatrixMock mock;
-        private Results results;
+        
+        /*
+         * 每个 Searcher 在 PaddedResults 中有自己的槽位（下标是 index），槽位之间隔开了缓存行。
+         * 如果所有线程都写同一个 int[]，相邻两个线程负责的行在分界处会落在同一个缓存行上（伪共享）。
+         */
+        private int index;
+        private PaddedResults results;
         
         // 用于存放要查找的数字。
         private int number;
         
         private final CyclicBarrier barrier;
 
-        public Searcher(int firstRow, int lastRow, MatrixMock mock, Results results, int number, CyclicBarrier barrier) {
+        public Searcher(int firstRow, int lastRow, MatrixMock mock, int index, PaddedResults results, int number, CyclicBarrier barrier) {
             this.firstRow = firstRow;
             this.lastRow = lastRow;
             this.mock = mock;
+            this.index = index;
             this.results = results;
             this.number = number;
             this.barrier = barrier;
@@ -93,7 +83,8 @@ public class Main_4 {
             // 将查找范围打印到控制台。
             System.out.printf("%s: Processing lines from %d to %d.\n", Thread.currentThread().getName(), firstRow, lastRow);
             
-            // 根据一定的范围，在二维矩阵中，对指定的数字进行查找。并将查找到的次数保存到Results对象的相应位置上。
+            // 根据一定的范围，在二维矩阵中，对指定的数字进行查找。先在局部变量中累计，最后只写一次自己的槽位。
+            long total = 0;
             for (int i = firstRow; i < lastRow; i++) {
                 int row[] = mock.getRow(i);
                 counter = 0;
@@ -102,8 +93,9 @@ public class Main_4 {
                         counter++;
                     }
                 }
-                results.setData(i, counter);
+                total += counter;
             }
+            results.set(index, total);
 
             System.out.printf("%s: Lines processed.\n", Thread.currentThread().getName());
 
@@ -151,9 +143,9 @@ public class Main_4 {
     /** 创建 Grouper 任务，来统计在矩阵中查找到指定数字的总次数。*/
     private static class Grouper implements Runnable {
         
-    	private Results results;
+    	private PaddedResults results;
         
-        public Grouper(Results results) {
+        public Grouper(PaddedResults results) {
             this.results = results;
         }
 
@@ -161,12 +153,8 @@ public class Main_4 {
         public void run() {
         	System.out.printf("Grouper: Processing results...\n");
             
-        	// 对找到的次数进行统计。
-        	int finalResult = 0;
-            int data[] = results.getData();
-            for (int number : data) {
-                finalResult += number;
-            }
+        	// 对找到的次数进行统计：所有 Searcher 都已经到达屏障，只需要合并各个槽位，不必再读一遍每行的结果。
+        	long finalResult = results.merge();
 
             System.out.printf("Grouper: Total result: %d.\n", finalResult);
         }
@@ -186,8 +174,8 @@ public class Main_4 {
         
         // 构造二维矩阵对象。
         MatrixMock mock = new MatrixMock(ROWS, NUMBERS, SEARCH);
-        // 构造查询结果对象。
-        Results results = new Results(ROWS);
+        // 构造查询结果对象，每个 Searcher 一个槽位。
+        PaddedResults results = new PaddedResults(PARTICIPANTS);
         // 构造统计任务。
         Grouper grouper = new Grouper(results);
         
@@ -206,7 +194,7 @@ public class Main_4 {
         	 * 第五个 Searcher 任务的搜索范围是：[8000-10000]
         	 * 
         	 */
-        	searchers[i] = new Searcher(i * LINES_PARTICIPANT, (i * LINES_PARTICIPANT) + LINES_PARTICIPANT, mock, results, SEARCH, barrier);
+        	searchers[i] = new Searcher(i * LINES_PARTICIPANT, (i * LINES_PARTICIPANT) + LINES_PARTICIPANT, mock, i, results, SEARCH, barrier);
             Thread thread = new Thread(searchers[i]);
             thread.start();
         }
@@ -4,8 +4,11 @@ import java.io.File;
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.Phaser;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class Main_5 {
 	
@@ -140,7 +143,200 @@ public class Main_5 {
         }
     }
 
+    /**
+     * 流水线模式：遍历目录、按修改时间过滤、输出结果三个阶段同时运行，阶段之间用有界队列连接。
+     *
+     * 在 FileSearch 中，每个阶段都要等所有线程都完成了上一个阶段才能开始，最慢的那个根目录决定了每个阶段的结束时间，
+     * 总时间是 “各阶段最大耗时之和”。而在流水线中，一个文件被找到后马上就可以被过滤、被输出，遍历得快的根目录也不必等待遍历得慢的根目录，
+     * 总时间接近于最慢的那个根目录的遍历时间。
+     *
+     * 有界队列（ArrayBlockingQueue）让下游处理不过来时上游的 put() 阻塞，不会无限制地堆积中间结果。
+     * Phaser 只在最后用来等待所有阶段的线程结束：每个线程启动前 register()，结束时 arriveAndDeregister()。
+     */
+    private static class PipelineSearch {
+    	
+    	/** 一个查找结果：来自哪个根目录，以及文件的完整路径。*/
+    	private static class Hit {
+    		final String source;
+    		final String path;
+    		
+    		Hit(String source, String path) {
+    			this.source = source;
+    			this.path = path;
+    		}
+    	}
+    	
+    	/** 队列中的结束标记。*/
+    	private static final Hit END = new Hit(null, null);
+    	
+    	/** 过滤阶段的线程数。*/
+    	private static final int FILTERS = 2;
+    	
+    	private final String end;
+    	private final BlockingQueue<Hit> found = new ArrayBlockingQueue<Hit>(1024);
+    	private final BlockingQueue<Hit> recent = new ArrayBlockingQueue<Hit>(1024);
+    	private final AtomicInteger crawlersLeft = new AtomicInteger();
+    	private final AtomicInteger filtersLeft = new AtomicInteger(FILTERS);
+    	private final AtomicInteger results = new AtomicInteger();
+    	
+    	// 主线程作为一个参与者先注册。
+    	private final Phaser phaser = new Phaser(1);
+    	
+    	public PipelineSearch(String end) {
+    		this.end = end;
+    	}
+    	
+    	/** 启动所有阶段，等待它们全部结束，返回输出的结果数。*/
+    	public int run(String roots[], String names[]) {
+    		crawlersLeft.set(roots.length);
+    		for (int i = 0; i < roots.length; i++) {
+    			start(new Crawler(roots[i], names[i]), names[i]);
+    		}
+    		for (int i = 0; i < FILTERS; i++) {
+    			start(new Filter(), "Filter-" + i);
+    		}
+    		start(new Printer(), "Output");
+    		
+    		// 唯一的一次同步：等待所有阶段的线程都调用 arriveAndDeregister()。
+    		phaser.arriveAndAwaitAdvance();
+    		phaser.arriveAndDeregister();
+    		return results.get();
+    	}
+    	
+    	private void start(final Runnable stage, String name) {
+    		phaser.register();
+    		new Thread(new Runnable() {
+    			@Override
+    			public void run() {
+    				try {
+    					stage.run();
+    				} finally {
+    					phaser.arriveAndDeregister();
+    				}
+    			}
+    		}, name).start();
+    	}
+    	
+    	/** 放入结束标记。线程已被中断时也要放入，之后再恢复中断状态。*/
+    	private static void putEnd(BlockingQueue<Hit> queue) {
+    		boolean interrupted = false;
+    		while (true) {
+    			try {
+    				queue.put(END);
+    				break;
+    			} catch (InterruptedException e) {
+    				interrupted = true;
+    			}
+    		}
+    		if (interrupted) {
+    			Thread.currentThread().interrupt();
+    		}
+    	}
+    	
+    	/** 第一阶段：遍历一个根目录，把扩展名符合的文件放入 found 队列。*/
+    	private class Crawler implements Runnable {
+    		
+    		private final String root;
+    		private final String name;
+    		
+    		Crawler(String root, String name) {
+    			this.root = root;
+    			this.name = name;
+    		}
+    		
+    		private void directoryProcess(File file) throws InterruptedException {
+    			File list[] = file.listFiles();
+    			if (list != null) {
+    				for (int i = 0; i < list.length; i++) {
+    					if (list[i].isDirectory()) {
+    						directoryProcess(list[i]);
+    					} else if (list[i].getName().endsWith(end)) {
+    						found.put(new Hit(name, list[i].getAbsolutePath()));
+    					}
+    				}
+    			}
+    		}
+    		
+    		@Override
+    		public void run() {
+    			try {
+    				File file = new File(root);
+    				if (file.isDirectory()) {
+    					directoryProcess(file);
+    				}
+    				System.out.printf("%s: Crawl completed.\n", name);
+    			} catch (InterruptedException e) {
+    				e.printStackTrace();
+    			} finally {
+    				// 最后一个结束的遍历线程负责通知每个过滤线程结束。即使遍历出错也要通知，否则下游会一直等待。
+    				if (crawlersLeft.decrementAndGet() == 0) {
+    					for (int i = 0; i < FILTERS; i++) {
+    						putEnd(found);
+    					}
+    				}
+    			}
+    		}
+    	}
+    	
+    	/** 第二阶段：只保留过去24小时内修改过的文件，放入 recent 队列。*/
+    	private class Filter implements Runnable {
+    		
+    		@Override
+    		public void run() {
+    			try {
+    				long oneDay = TimeUnit.MILLISECONDS.convert(1, TimeUnit.DAYS);
+    				Hit hit;
+    				while ((hit = found.take()) != END) {
+    					if (System.currentTimeMillis() - new File(hit.path).lastModified() < oneDay) {
+    						recent.put(hit);
+    					}
+    				}
+    			} catch (InterruptedException e) {
+    				e.printStackTrace();
+    			} finally {
+    				// 最后一个结束的过滤线程负责通知输出线程结束。
+    				if (filtersLeft.decrementAndGet() == 0) {
+    					putEnd(recent);
+    				}
+    			}
+    		}
+    	}
+    	
+    	/** 第三阶段：在控制台输出结果。*/
+    	private class Printer implements Runnable {
+    		
+    		@Override
+    		public void run() {
+    			try {
+    				Hit hit;
+    				while ((hit = recent.take()) != END) {
+    					System.out.printf("%s: %s\n", hit.source, hit.path);
+    					results.incrementAndGet();
+    				}
+    			} catch (InterruptedException e) {
+    				e.printStackTrace();
+    			}
+    		}
+    	}
+    }
+
     public static void main(String[] args) {
+    	
+    	// 运行参数：[pipeline] [根目录1 根目录2 根目录3]。指定 pipeline 时使用流水线模式，否则使用原来的分阶段模式。
+    	boolean pipeline = args.length > 0 && "pipeline".equals(args[0]);
+    	int offset = pipeline ? 1 : 0;
+    	String roots[] = {"C:\\Windows", "C:\\Program Files", "C:\\Document And Settings"};
+    	String names[] = {"System", "Apps", "Documents"};
+    	if (args.length - offset == roots.length) {
+    		System.arraycopy(args, offset, roots, 0, roots.length);
+    	}
+    	
+    	long start = System.nanoTime();
+    	if (pipeline) {
+    		int results = new PipelineSearch("log").run(roots, names);
+    		System.out.printf("Main: Pipeline: %d results in %d ms.\n", results, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+    		return;
+    	}
 
     	/*
     	 * 创建 Phaser 对象，并指定参与阶段同步的线程是3个。
@@ -178,16 +374,16 @@ public class Main_5 {
         Phaser phaser = new Phaser(3);
         
         // 创建3个文件查找类FileSearch对象，并为每个对象指定不同的查找目录，且指定查找文件的扩展名为.log文件。
-        FileSearch system = new FileSearch("C:\\Windows", "log", phaser);
-        FileSearch apps = new FileSearch("C:\\Program Files", "log", phaser);
-        FileSearch documents = new FileSearch("C:\\Document And Settings", "log", phaser);
+        FileSearch system = new FileSearch(roots[0], "log", phaser);
+        FileSearch apps = new FileSearch(roots[1], "log", phaser);
+        FileSearch documents = new FileSearch(roots[2], "log", phaser);
         
         // 创建3个线程，分别启动这3个任务。
-        Thread systemThread = new Thread(system, "System");
+        Thread systemThread = new Thread(system, names[0]);
         systemThread.start();
-        Thread appsThread = new Thread(apps, "Apps");
+        Thread appsThread = new Thread(apps, names[1]);
         appsThread.start();
-        Thread documentsThread = new Thread(documents, "Documents");
+        Thread documentsThread = new Thread(documents, names[2]);
         documentsThread.start();
         
         // 让主线程等待这三个线程的结束。
@@ -209,6 +405,7 @@ public class Main_5 {
          * 将抛出 IllegalStateException 异常。 
          */
         System.out.println("Terminated: " + phaser.isTerminated());
+        System.out.printf("Main: Phased: %d ms.\n", TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
     	
     }
 }
@@ -0,0 +1,69 @@
+package chapter3;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 用 FileIndex 回答 Main_5 中 FileSearch 的查询：“过去 24 小时内修改过的 .log 文件”。
+ *
+ * 第一次运行时要完整地遍历一遍所有根目录；之后每次运行都先加载上次保存的索引，只需要重新读取修改时间发生了变化的目录。
+ * 索引建立好之后开始监听文件系统的变化，每隔几秒查询一次，查询直接在内存中完成。
+ * 为了能看到监听的效果，程序会在第一个根目录下新建一个 .log 文件，随后再把它删掉。
+ *
+ * 运行参数是要索引的根目录，默认是 java.io.tmpdir。
+ *
+ * @author FrankTaylor <mailto:hubin@300.cn>
+ * @since 1.0
+ */
+public class Main_8 {
+
+	public static void main(String[] args) throws Exception {
+		List<Path> roots = new ArrayList<Path>();
+		for (String arg : args) {
+			roots.add(Paths.get(arg));
+		}
+		if (roots.isEmpty()) {
+			roots.add(Paths.get(System.getProperty("java.io.tmpdir")));
+		}
+		File indexFile = new File(System.getProperty("java.io.tmpdir"), "file-search.idx");
+
+		FileIndex index = new FileIndex(roots);
+
+		// 加载上次保存的索引，再与磁盘同步。
+		long start = System.nanoTime();
+		boolean loaded = index.load(indexFile);
+		index.refresh();
+		index.save(indexFile);
+		System.out.printf("Main: %s index in %d ms: %d directories, %d files.\n", loaded ? "Refreshed" : "Built",
+				TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start), index.getDirectoryCount(), index.getFileCount());
+
+		index.startWatching();
+		try {
+			Path probe = roots.get(0).toAbsolutePath().resolve("file-index-probe.log");
+			for (int i = 0; i < 4; i++) {
+				if (i == 1) {
+					Files.write(probe, "probe".getBytes("UTF-8"));
+					System.out.printf("Main: Created %s\n", probe);
+				} else if (i == 3) {
+					Files.deleteIfExists(probe);
+					System.out.printf("Main: Deleted %s\n", probe);
+				}
+				TimeUnit.SECONDS.sleep(2);
+
+				start = System.nanoTime();
+				long since = System.currentTimeMillis() - TimeUnit.MILLISECONDS.convert(1, TimeUnit.DAYS);
+				List<String> results = index.search("log", since);
+				System.out.printf("Main: %d results in %.3f ms, probe %s.\n", results.size(),
+						(System.nanoTime() - start) / 1e6, results.contains(probe.toString()) ? "found" : "not found");
+			}
+		} finally {
+			index.close();
+			index.save(indexFile);
+		}
+	}
+}
@@ -0,0 +1,259 @@
+package chapter3;
+
+import java.util.Random;
+import java.util.concurrent.BrokenBarrierException;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * 按线程分槽、互相隔开缓存行的部分结果，Main_4 用它代替了原来所有 Searcher 共同写入的 Results。
+ *
+ * 原来 Main_4 的各个 Searcher 同时写 Results.data 这一个 int[]：相邻两个线程负责的行在数组中是挨着的，分界处的元素落在同一个缓存行上；
+ * 如果把 “每找到一次就加 1” 的计数器放在共享数组中相邻的位置，情况更糟，每次写入都会让其他核上的这个缓存行失效（伪共享，false sharing）。
+ * Grouper 还要把整个数组重新读一遍才能得到总数。
+ *
+ * PaddedResults 给每个线程一个槽位，槽位之间隔开 STRIDE 个 long（128 字节，覆盖相邻缓存行预取的范围），每个槽位只有它的主人写。
+ * Main_4 的 Searcher 在局部变量中计数，最后调用一次 set()，Grouper 调用 merge() 得到总数：
+ * 1、add() 和 set() 用 lazySet() 写入，不需要 CAS，也不会被 JIT 合并到循环之外；
+ * 2、屏障操作调用 merge() 得到所有槽位的合计，调用 reset() 为下一轮清零；
+ * 3、构造时可以关闭隔开（padded 为 false），槽位紧挨着存放，用来对比伪共享的代价。
+ *
+ * main() 中的基准测试按 Main_4 原来的频率（每处理完一行写一次）比较共享的 int[]、紧挨着的槽位和隔开的槽位。
+ * 每行 1000 个元素才写一次，写入本来就不频繁，只有线程分布在多个核上时才可能看出差别。
+ *
+ * @author FrankTaylor <mailto:hubin@300.cn>
+ * @since 1.0
+ */
+public class PaddedResults {
+
+	/** 相邻两个槽位之间的距离（long 的个数），128 字节。*/
+	static final int STRIDE = 16;
+
+	private final AtomicLongArray slots;
+	private final int workers;
+	private final int stride;
+
+	public PaddedResults(int workers) {
+		this(workers, true);
+	}
+
+	public PaddedResults(int workers, boolean padded) {
+		this.workers = workers;
+		this.stride = padded ? STRIDE : 1;
+		// 第一个槽位前面也留出 stride 个 long，避免与数组头或堆上前一个对象共享缓存行。
+		this.slots = new AtomicLongArray((workers + 2) * stride);
+	}
+
+	public int getWorkers() {
+		return workers;
+	}
+
+	private int index(int worker) {
+		return (worker + 1) * stride;
+	}
+
+	/** 第 worker 个线程的槽位加上 delta。只能由这个线程调用。*/
+	public void add(int worker, long delta) {
+		int i = index(worker);
+		slots.lazySet(i, slots.get(i) + delta);
+	}
+
+	/** 设置第 worker 个线程的槽位。只能由这个线程调用。*/
+	public void set(int worker, long value) {
+		slots.lazySet(index(worker), value);
+	}
+
+	public long get(int worker) {
+		return slots.get(index(worker));
+	}
+
+	/** 返回所有槽位的合计。通常由屏障操作调用，此时所有线程都已经写完。*/
+	public long merge() {
+		long total = 0;
+		for (int worker = 0; worker < workers; worker++) {
+			total += slots.get(index(worker));
+		}
+		return total;
+	}
+
+	/** 把所有槽位清零，以便下一轮使用。*/
+	public void reset() {
+		for (int worker = 0; worker < workers; worker++) {
+			slots.set(index(worker), 0);
+		}
+	}
+
+	/** 基准测试中结果的写法。*/
+	private enum Mode {
+
+		/** 与原来的 Main_4 一样：每处理完一行，把这一行的次数写入所有线程共享的 int[] 中对应行的位置。*/
+		SHARED_ROWS,
+
+		/** 每处理完一行，把累计的次数写入自己的槽位，槽位之间不隔开。*/
+		ADJACENT_SLOTS,
+
+		/** 每处理完一行，把累计的次数写入自己的槽位，槽位之间隔开 STRIDE 个 long。*/
+		PADDED_SLOTS
+	}
+
+	/**
+	 * 基准测试的工作线程：在所有轮次中一直存在，每一轮在 start 屏障上等待开始，查找自己的行，再在 end 屏障上等待结束。
+	 * 线程的创建和启动不计入耗时。
+	 */
+	private static class Searcher implements Runnable {
+
+		private final int worker;
+		private final int data[][];
+		private final int firstRow, lastRow;
+		private final int number;
+		private final Round round;
+
+		Searcher(int worker, int data[][], int firstRow, int lastRow, int number, Round round) {
+			this.worker = worker;
+			this.data = data;
+			this.firstRow = firstRow;
+			this.lastRow = lastRow;
+			this.number = number;
+			this.round = round;
+		}
+
+		@Override
+		public void run() {
+			try {
+				while (true) {
+					round.start.await();
+					Mode mode = round.mode;
+					if (mode == null) {
+						return;
+					}
+					long total = 0;
+					for (int i = firstRow; i < lastRow; i++) {
+						int row[] = data[i];
+						int counter = 0;
+						for (int j = 0; j < row.length; j++) {
+							if (row[j] == number) {
+								counter++;
+							}
+						}
+						total += counter;
+						if (mode == Mode.SHARED_ROWS) {
+							round.rows[i] = counter;
+						} else {
+							round.slots.set(worker, total);
+						}
+					}
+					round.end.await();
+				}
+			} catch (InterruptedException e) {
+				e.printStackTrace();
+			} catch (BrokenBarrierException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+	/** 一轮测试的设置和结果。start 的屏障操作记录开始时间，end 的屏障操作合并结果并记录结束时间。*/
+	private static class Round {
+
+		final CyclicBarrier start;
+		final CyclicBarrier end;
+		final int rows[];
+		Mode mode;
+		PaddedResults slots;
+		long startNanos;
+		long endNanos;
+		long total;
+
+		Round(int threads, int rowCount) {
+			rows = new int[rowCount];
+			start = new CyclicBarrier(threads, new Runnable() {
+				@Override
+				public void run() {
+					startNanos = System.nanoTime();
+				}
+			});
+			end = new CyclicBarrier(threads, new Runnable() {
+				@Override
+				public void run() {
+					endNanos = System.nanoTime();
+					if (mode == Mode.SHARED_ROWS) {
+						total = 0;
+						for (int counter : rows) {
+							total += counter;
+						}
+					} else {
+						total = slots.merge();
+						slots.reset();
+					}
+				}
+			});
+		}
+	}
+
+	/** 用 threads 个线程，对每种写法各运行 rounds 轮，输出每种写法最快的一轮。*/
+	private static void measure(int data[][], int number, int threads, int rounds, long expected) throws InterruptedException, BrokenBarrierException {
+		// 主线程也是 start 和 end 的参与者，用来控制每一轮的开始和等待结束。
+		Round round = new Round(threads + 1, data.length);
+		Thread workers[] = new Thread[threads];
+		for (int i = 0; i < threads; i++) {
+			int firstRow = (int) ((long) data.length * i / threads);
+			int lastRow = (int) ((long) data.length * (i + 1) / threads);
+			workers[i] = new Thread(new Searcher(i, data, firstRow, lastRow, number, round), "Searcher-" + i);
+			workers[i].start();
+		}
+
+		StringBuilder sb = new StringBuilder();
+		for (Mode mode : Mode.values()) {
+			round.mode = mode;
+			round.slots = new PaddedResults(threads, mode == Mode.PADDED_SLOTS);
+			long best = Long.MAX_VALUE;
+			for (int i = 0; i < rounds; i++) {
+				round.start.await();
+				round.end.await();
+				if (round.total != expected) {
+					throw new IllegalStateException(mode + ": total = " + round.total + ", expected " + expected);
+				}
+				best = Math.min(best, round.endNanos - round.startNanos);
+			}
+			sb.append(String.format(", %s %.2f ms", mode, best / 1e6));
+		}
+		System.out.printf("Main: %d threads%s\n", threads, sb);
+
+		round.mode = null;
+		round.start.await();
+		for (Thread worker : workers) {
+			worker.join();
+		}
+	}
+
+	/**
+	 * 与 Main_4 相同的 int[][] 矩阵和按行分段的查找，从 1 个线程到所有处理器（或 args[0] 指定的线程数），
+	 * 比较三种写结果的方式，每种取 ROUNDS 轮中最快的一轮。每处理完一行写一次结果，与 Main_4 原来的写入频率相同。
+	 */
+	public static void main(String[] args) throws InterruptedException, BrokenBarrierException {
+		final int ROWS = 10000;
+		final int NUMBERS = 1000;
+		final int SEARCH = 5;
+		final int ROUNDS = 10;
+		final int MAX_THREADS = args.length > 0 ? Integer.parseInt(args[0]) : Runtime.getRuntime().availableProcessors();
+
+		int data[][] = new int[ROWS][NUMBERS];
+		long expected = 0;
+		Random random = new Random();
+		for (int i = 0; i < ROWS; i++) {
+			for (int j = 0; j < NUMBERS; j++) {
+				data[i][j] = random.nextInt(10);
+				if (data[i][j] == SEARCH) {
+					expected++;
+				}
+			}
+		}
+		System.out.printf("Main: There are %d ocurrences of number %d in generated data.\n", expected, SEARCH);
+
+		// 第一次运行同时完成 JIT 预热。
+		measure(data, SEARCH, 1, ROUNDS, expected);
+		for (int threads = 1; threads <= MAX_THREADS; threads = threads < MAX_THREADS ? Math.min(MAX_THREADS, threads * 2) : threads + 1) {
+			measure(data, SEARCH, threads, ROUNDS, expected);
+		}
+	}
+}
@@ -36,7 +36,20 @@ public class Calculator extends RecursiveTask<Integer> {
 
 	private static final long serialVersionUID = -626146704381452020L;
 	
-	private static final int THRESHOLD = 100;
+	/**
+	 * 叶子任务累加的数的个数，默认值是 100，开启 ThresholdTuner 后按本机的速度确定。
+	 * 最多 1000，保证 main() 中 0~10000 的求和仍然会被拆分。
+	 */
+	private static final int THRESHOLD = ThresholdTuner.threshold("chapter5.Calculator", 100, 1000, new ThresholdTuner.Sample() {
+		@Override
+		protected long run(int size) {
+			int sum = 0;
+			for (int i = 0; i < size; i++) {
+				sum += i;
+			}
+			return sum;
+		}
+	});
 	private int start;
 	private int end;
 	
@@ -48,7 +61,7 @@ public class Calculator extends RecursiveTask<Integer> {
 	@Override
 	protected Integer compute() {
 		int sum = 0;
-		if ((start - end) < THRESHOLD) {
+		if ((end - start) < THRESHOLD) {
 			for (int i = start; i < end; i++) {
 				sum += i;
 			}
@@ -57,7 +70,7 @@ public class Calculator extends RecursiveTask<Integer> {
 			int middle = (start + end) / 2;
 			
 			Calculator left = new Calculator(start, middle);
-			Calculator right = new Calculator(middle + 1, end);
+			Calculator right = new Calculator(middle, end);
 			
 			/*
 			 * 按照调用fork()的顺序执行两个子任务对象的join()方法。其实，这样就有一个问题，
@@ -69,9 +82,12 @@ public class Calculator extends RecursiveTask<Integer> {
 			 * 线程都会因为第一个子任务的join()而阻塞，加大了代码运行的成本，提高了资源开销，不
 			 * 利于提高程序性能。
 			 * 
-			 * 除此之外，这段程序还是不能进入Fork Join的过程，因为还有一个低级错误。看下第49、
-			 * 50行代码的条件，就清楚了。按照逻辑，start必然是比end小的。这将导致所有任务都将以
-			 * 循环累加的方式完成，而不会执行fork()和join()。
+			 * 除此之外，这段程序原来还不能进入Fork Join的过程，因为还有一个低级错误：拆分的条件写成了
+			 * (start - end) < THRESHOLD。按照逻辑，start必然是比end小的，这将导致所有任务都以
+			 * 循环累加的方式完成，而不会执行fork()和join()。条件改正之后又暴露出另一个错误：右半部分
+			 * 从 middle + 1 开始，middle 本身被漏掉了。这两处现在都已改正。
+			 * 
+			 * 实际使用时可以直接用 ParallelReduce，它没有装箱，阈值也是根据数据量和并行度自动计算的。
 			 */
 			left.fork();
 			right.fork();
@@ -93,6 +109,9 @@ public class Calculator extends RecursiveTask<Integer> {
 			e.printStackTrace();
 		}
 		
+		// 用 ParallelReduce 计算同样的和。
+		System.out.println(new ParallelReduce(pool).sumRange(0, 10000));
+		
 		System.out.println((5 + 5) >>> 1);
 	}
 }
\ No newline at end of file
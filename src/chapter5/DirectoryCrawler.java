@@ -0,0 +1,223 @@
+package chapter5;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 基于工作窃取（work-stealing）的并行目录遍历器，用来代替 Main_3 中的 FolderProcessor。
+ *
+ * FolderProcessor 有三个问题：
+ * 1、每个文件夹都 fork 一个任务，即使文件夹里只有一两个文件，任务的创建和调度开销比处理文件本身还大；
+ * 2、File#listFiles() 之后，对每个元素调用 isDirectory() 和 getAbsolutePath()，要创建很多 File 对象和字符串；
+ * 3、每一层都新建一个 ArrayList，在返回时用 addAll() 把子任务的结果拷贝到父任务的列表中，文件越多，拷贝越多。
+ *
+ * DirectoryCrawler 的做法是：
+ * 1、用 Files#newDirectoryStream() 逐个读取目录项，用 Files#readAttributes() 一次取得文件的所有基本属性；
+ * 2、自适应的任务粒度：每个任务用一个本地的栈来遍历子目录，只有当线程池中排队的任务不多（其他线程可能没活干）时，
+ *   才把子目录 fork 成新的任务，否则先推迟到本地的栈中。每次从栈中取目录之前都会重新判断：排队的任务少了，就把栈底的目录 fork 出去，
+ *   所以繁忙时推迟的子目录在其他线程空闲下来以后仍然可以被拆分出去，不会全部留给当前线程串行处理。
+ *   这样小目录都在本地处理掉了，只有大的子树才会被拆分出去；
+ * 3、找到的文件直接交给一个线程安全的 Sink，不再逐层合并结果列表。
+ *
+ * 注意：不跟随符号链接，所以不会因为链接形成的环而无限遍历。
+ *
+ * @author FrankTaylor <mailto:hubin@300.cn>
+ * @since 1.0
+ */
+public class DirectoryCrawler {
+
+	/** 接收遍历到的文件。会被多个工作线程同时调用，实现类必须是线程安全的。*/
+	public interface Sink {
+		void accept(Path file, BasicFileAttributes attrs);
+	}
+
+	/**
+	 * 当前线程的任务队列中 “多出来的” 任务数不超过这个值时才 fork 新任务。
+	 * 这是 Doug Lea 在 ForkJoinTask#getSurplusQueuedTaskCount() 的文档中建议的做法，通常取一个很小的值。
+	 */
+	private static final int SURPLUS_THRESHOLD = 2;
+
+	private final ForkJoinPool pool;
+
+	public DirectoryCrawler(ForkJoinPool pool) {
+		this.pool = pool;
+	}
+
+	/** 遍历 root 下的所有文件，把文件名以 extension 结尾的普通文件交给 sink。该方法在遍历结束后才返回。*/
+	public void crawl(Path root, String extension, Sink sink) {
+		pool.invoke(new CrawlTask(root, extension, sink));
+	}
+
+	private static class CrawlTask extends RecursiveAction {
+
+		private static final long serialVersionUID = 2206470405521495138L;
+
+		private final Path dir;
+		private final String extension;
+		private final Sink sink;
+
+		public CrawlTask(Path dir, String extension, Sink sink) {
+			this.dir = dir;
+			this.extension = extension;
+			this.sink = sink;
+		}
+
+		@Override
+		protected void compute() {
+			List<CrawlTask> forked = new ArrayList<CrawlTask>();
+
+			// 用本地的栈代替递归，深而窄的目录树也不会导致栈溢出。
+			ArrayDeque<Path> stack = new ArrayDeque<Path>();
+			stack.push(dir);
+			while (!stack.isEmpty()) {
+				// 发现子目录时线程池可能很忙，取出时再判断一次。栈底是最早推迟的、离根最近的目录，通常是最大的子树，优先 fork 出去；
+				// 至少留一个目录在本地处理。
+				while (stack.size() > 1 && getSurplusQueuedTaskCount() <= SURPLUS_THRESHOLD) {
+					fork(stack.pollLast(), forked);
+				}
+				Path current = stack.pop();
+				try (DirectoryStream<Path> entries = Files.newDirectoryStream(current)) {
+					for (Path entry : entries) {
+						BasicFileAttributes attrs;
+						try {
+							attrs = Files.readAttributes(entry, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+						} catch (IOException e) {
+							// 文件在遍历的过程中被删除了。
+							continue;
+						}
+
+						if (attrs.isDirectory()) {
+							if (getSurplusQueuedTaskCount() <= SURPLUS_THRESHOLD) {
+								fork(entry, forked);
+							} else {
+								stack.push(entry);
+							}
+						} else if (attrs.isRegularFile() && entry.getFileName().toString().endsWith(extension)) {
+							sink.accept(entry, attrs);
+						}
+					}
+				} catch (IOException e) {
+					// 没有权限读取的目录，与 File#listFiles() 返回 null 时一样，直接跳过。
+				}
+			}
+
+			for (CrawlTask task : forked) {
+				task.join();
+			}
+		}
+
+		private void fork(Path subdir, List<CrawlTask> forked) {
+			CrawlTask task = new CrawlTask(subdir, extension, sink);
+			task.fork();
+			forked.add(task);
+		}
+	}
+
+	/** 只统计文件的个数和总大小。*/
+	private static class CountingSink implements Sink {
+
+		private final AtomicLong files = new AtomicLong();
+		private final AtomicLong bytes = new AtomicLong();
+
+		@Override
+		public void accept(Path file, BasicFileAttributes attrs) {
+			files.incrementAndGet();
+			bytes.addAndGet(attrs.size());
+		}
+	}
+
+	/** 深而窄的目录树：chains 条长度为 depth 的目录链，每层 filesPerDir 个文件。*/
+	private static void generateDeepNarrow(Path root, int chains, int depth, int filesPerDir) throws IOException {
+		for (int c = 0; c < chains; c++) {
+			Path dir = root.resolve("chain" + c);
+			for (int d = 0; d < depth; d++) {
+				Files.createDirectories(dir);
+				for (int f = 0; f < filesPerDir; f++) {
+					Files.createFile(dir.resolve("file" + f + (f % 2 == 0 ? ".log" : ".txt")));
+				}
+				dir = dir.resolve("d" + d);
+			}
+		}
+	}
+
+	/** 宽而浅的目录树：dirs 个子目录，每个子目录 filesPerDir 个文件。*/
+	private static void generateWideShallow(Path root, int dirs, int filesPerDir) throws IOException {
+		for (int d = 0; d < dirs; d++) {
+			Path dir = Files.createDirectories(root.resolve("dir" + d));
+			for (int f = 0; f < filesPerDir; f++) {
+				Files.createFile(dir.resolve("file" + f + (f % 2 == 0 ? ".log" : ".txt")));
+			}
+		}
+	}
+
+	private static void delete(Path root) throws IOException {
+		Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+			@Override
+			public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+				Files.delete(file);
+				return FileVisitResult.CONTINUE;
+			}
+
+			@Override
+			public FileVisitResult postVisitDirectory(Path dir, IOException e) throws IOException {
+				Files.delete(dir);
+				return FileVisitResult.CONTINUE;
+			}
+		});
+	}
+
+	/** 分别用 FolderProcessor 和 DirectoryCrawler 遍历 root，各运行 rounds 轮，输出最快的一轮。*/
+	private static void compare(String name, Path root, ForkJoinPool pool, int rounds) {
+		long best = Long.MAX_VALUE;
+		int found = 0;
+		for (int i = 0; i < rounds; i++) {
+			long start = System.nanoTime();
+			found = pool.invoke(new Main_3.FolderProcessor(root.toString(), "log")).size();
+			best = Math.min(best, System.nanoTime() - start);
+		}
+		System.out.printf("%-13s FolderProcessor : %7d files, %6d ms\n", name, found, best / 1000000);
+
+		DirectoryCrawler crawler = new DirectoryCrawler(pool);
+		best = Long.MAX_VALUE;
+		CountingSink sink = null;
+		for (int i = 0; i < rounds; i++) {
+			sink = new CountingSink();
+			long start = System.nanoTime();
+			crawler.crawl(root, "log", sink);
+			best = Math.min(best, System.nanoTime() - start);
+		}
+		System.out.printf("%-13s DirectoryCrawler: %7d files, %6d ms, steals: %d\n", name, sink.files.get(), best / 1000000, pool.getStealCount());
+	}
+
+	public static void main(String[] args) throws IOException {
+		Path base = Files.createTempDirectory(new File(System.getProperty("java.io.tmpdir")).toPath(), "crawler");
+		Path deepNarrow = base.resolve("deep-narrow");
+		Path wideShallow = base.resolve("wide-shallow");
+
+		System.out.printf("Main: Generating synthetic trees in %s...\n", base);
+		generateDeepNarrow(deepNarrow, 16, 400, 8);
+		generateWideShallow(wideShallow, 20000, 3);
+
+		ForkJoinPool pool = new ForkJoinPool();
+		try {
+			compare("deep-narrow", deepNarrow, pool, 5);
+			compare("wide-shallow", wideShallow, pool, 5);
+		} finally {
+			pool.shutdown();
+			delete(base);
+		}
+	}
+}
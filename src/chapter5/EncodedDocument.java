@@ -0,0 +1,282 @@
+package chapter5;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * 用整数编码的文档：一个词典加上一个扁平的 int[]。
+ *
+ * Main_2.Document 生成的 String[][] 中，每个单元格都只是词表中 10 个字符串之一的引用，LineTask 却要对每个单元格调用 String#equals()。
+ * EncodedDocument 把每个不同的词编号（词典 terms），文档本身只保存词的编号（ids），所有行首尾相接，
+ * 第 i 行是 ids 中 lineOffsets[i] 到 lineOffsets[i + 1] 之间的部分。这样：
+ * 1、查找一个词先在词典中查到它的编号，然后只需要比较整数，内层循环简单到 JIT 可以把它向量化；
+ * 2、每个单元格只占 4 个字节，而且是连续存放的，不再是一个个分散的引用；
+ * 3、可以直接保存到磁盘，下次加载时不需要重新分词。
+ *
+ * EncodedDocument 创建后不再修改，可以被多个线程同时读取。
+ *
+ * @author FrankTaylor <mailto:hubin@300.cn>
+ * @since 1.0
+ */
+public class EncodedDocument {
+
+	/** 文件格式的标识（"EDOC"）和版本号。*/
+	private static final int MAGIC = 0x45444F43;
+	private static final int VERSION = 1;
+
+	/** 每个工作线程平均分到的叶子任务数，以及叶子任务最少处理的单元格数。*/
+	private static final int LEAVES_PER_THREAD = 8;
+	private static final int MIN_LEAF_CELLS = 1024 * 16;
+
+	private final String terms[];
+	private final Map<String, Integer> dictionary;
+	private final int ids[];
+	private final int lineOffsets[];
+
+	private EncodedDocument(String terms[], int ids[], int lineOffsets[]) {
+		this.terms = terms;
+		this.ids = ids;
+		this.lineOffsets = lineOffsets;
+		this.dictionary = new HashMap<String, Integer>(terms.length * 2);
+		for (int i = 0; i < terms.length; i++) {
+			dictionary.put(terms[i], i);
+		}
+	}
+
+	/** 对字符串矩阵编码。*/
+	public static EncodedDocument encode(String document[][]) {
+		int lineOffsets[] = new int[document.length + 1];
+		long cells = 0;
+		for (int i = 0; i < document.length; i++) {
+			lineOffsets[i] = (int) cells;
+			cells += document[i].length;
+			if (cells > Integer.MAX_VALUE) {
+				throw new IllegalArgumentException("Document too large: more than " + Integer.MAX_VALUE + " words");
+			}
+		}
+		lineOffsets[document.length] = (int) cells;
+
+		Map<String, Integer> dictionary = new HashMap<String, Integer>();
+		int ids[] = new int[(int) cells];
+		int n = 0;
+		for (String line[] : document) {
+			for (String word : line) {
+				Integer id = dictionary.get(word);
+				if (id == null) {
+					id = dictionary.size();
+					dictionary.put(word, id);
+				}
+				ids[n++] = id;
+			}
+		}
+
+		String terms[] = new String[dictionary.size()];
+		for (Map.Entry<String, Integer> entry : dictionary.entrySet()) {
+			terms[entry.getValue()] = entry.getKey();
+		}
+		return new EncodedDocument(terms, ids, lineOffsets);
+	}
+
+	/** 返回词的编号，文档中没有这个词时返回 -1。*/
+	public int termId(String word) {
+		Integer id = dictionary.get(word);
+		return id != null ? id : -1;
+	}
+
+	public String getTerm(int id) {
+		return terms[id];
+	}
+
+	public int getTermCount() {
+		return terms.length;
+	}
+
+	public int getLineCount() {
+		return lineOffsets.length - 1;
+	}
+
+	public int getWordCount() {
+		return ids.length;
+	}
+
+	/** 返回第 line 行第 index 个词的编号。*/
+	public int getId(int line, int index) {
+		int position = lineOffsets[line] + index;
+		if (index < 0 || position >= lineOffsets[line + 1]) {
+			throw new IndexOutOfBoundsException("line " + line + ", index " + index);
+		}
+		return ids[position];
+	}
+
+	/** 用 pool 并行地统计 word 在文档中出现的次数。*/
+	public long count(ForkJoinPool pool, String word) {
+		int id = termId(word);
+		if (id < 0) {
+			return 0;
+		}
+		int threshold = Math.max(MIN_LEAF_CELLS, ids.length / (pool.getParallelism() * LEAVES_PER_THREAD));
+		CountTask task = new CountTask(ids, 0, ids.length, id, threshold);
+		pool.invoke(task);
+		return task.result;
+	}
+
+	/** 统计 ids 中下标 start 到 end 之间等于 id 的元素个数。*/
+	private static class CountTask extends RecursiveAction {
+
+		private static final long serialVersionUID = -1447935064526262318L;
+
+		private final int ids[];
+		private final int start, end;
+		private final int id;
+		private final int threshold;
+
+		long result;
+
+		CountTask(int ids[], int start, int end, int id, int threshold) {
+			this.ids = ids;
+			this.start = start;
+			this.end = end;
+			this.id = id;
+			this.threshold = threshold;
+		}
+
+		@Override
+		protected void compute() {
+			if (end - start <= threshold) {
+				// 用 int 计数，并且不在循环中写字段，让 JIT 能够向量化这个循环。
+				int counter = 0;
+				for (int i = start; i < end; i++) {
+					if (ids[i] == id) {
+						counter++;
+					}
+				}
+				result = counter;
+			} else {
+				int mid = (start + end) >>> 1;
+				CountTask task1 = new CountTask(ids, start, mid, id, threshold);
+				CountTask task2 = new CountTask(ids, mid, end, id, threshold);
+				task1.fork();
+				task2.compute();
+				task1.join();
+				result = task1.result + task2.result;
+			}
+		}
+	}
+
+	/** 保存到文件。先写到临时文件，完成后再改名，所以不会留下写了一半的文件。*/
+	public void save(File file) throws IOException {
+		File tmp = new File(file.getPath() + ".tmp");
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp), 1024 * 64));
+		try {
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeInt(terms.length);
+			for (String term : terms) {
+				out.writeUTF(term);
+			}
+			writeInts(out, lineOffsets);
+			writeInts(out, ids);
+		} finally {
+			out.close();
+		}
+		if (file.exists() && !file.delete() || !tmp.renameTo(file)) {
+			throw new IOException("Cannot rename " + tmp + " to " + file);
+		}
+	}
+
+	/** 从文件加载。文件的格式或版本不对时抛出 IOException。*/
+	public static EncodedDocument load(File file) throws IOException {
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1024 * 64));
+		try {
+			if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+				throw new IOException("Not an encoded document: " + file);
+			}
+			String terms[] = new String[in.readInt()];
+			for (int i = 0; i < terms.length; i++) {
+				terms[i] = in.readUTF();
+			}
+			int lineOffsets[] = readInts(in);
+			int ids[] = readInts(in);
+			return new EncodedDocument(terms, ids, lineOffsets);
+		} finally {
+			in.close();
+		}
+	}
+
+	/** 先写长度，再以 64 KB 为单位批量写出整数，避免逐个调用 writeInt()。*/
+	private static void writeInts(DataOutputStream out, int values[]) throws IOException {
+		out.writeInt(values.length);
+		byte chunk[] = new byte[1024 * 64];
+		ByteBuffer buffer = ByteBuffer.wrap(chunk);
+		for (int i = 0; i < values.length; ) {
+			int n = Math.min(chunk.length / 4, values.length - i);
+			buffer.clear();
+			buffer.asIntBuffer().put(values, i, n);
+			out.write(chunk, 0, n * 4);
+			i += n;
+		}
+	}
+
+	private static int[] readInts(DataInputStream in) throws IOException {
+		int values[] = new int[in.readInt()];
+		byte chunk[] = new byte[1024 * 64];
+		ByteBuffer buffer = ByteBuffer.wrap(chunk);
+		for (int i = 0; i < values.length; ) {
+			int n = Math.min(chunk.length / 4, values.length - i);
+			in.readFully(chunk, 0, n * 4);
+			buffer.clear();
+			buffer.asIntBuffer().get(values, i, n);
+			i += n;
+		}
+		return values;
+	}
+
+	/** 比较 WordCounter 与 EncodedDocument 的查找速度，以及保存、加载的耗时。*/
+	public static void main(String[] args) throws IOException {
+		String document[][] = new Main_2.Document().generateDocument(10000, 1000, "the");
+		ForkJoinPool pool = new ForkJoinPool();
+		WordCounter counter = new WordCounter(pool);
+
+		long start = System.nanoTime();
+		EncodedDocument encoded = EncodedDocument.encode(document);
+		System.out.printf("Main: Encoded %d words, %d terms in %d ms\n", encoded.getWordCount(), encoded.getTermCount(),
+				(System.nanoTime() - start) / 1000000);
+
+		long result = 0, bestStrings = Long.MAX_VALUE, bestInts = Long.MAX_VALUE;
+		for (int i = 0; i < 10; i++) {
+			start = System.nanoTime();
+			result = counter.count(document, "the");
+			bestStrings = Math.min(bestStrings, System.nanoTime() - start);
+		}
+		System.out.printf("Main: WordCounter    : %d, %.2f ms\n", result, bestStrings / 1e6);
+		for (int i = 0; i < 10; i++) {
+			start = System.nanoTime();
+			result = encoded.count(pool, "the");
+			bestInts = Math.min(bestInts, System.nanoTime() - start);
+		}
+		System.out.printf("Main: EncodedDocument: %d, %.2f ms (%.1fx)\n", result, bestInts / 1e6, (double) bestStrings / bestInts);
+
+		File file = File.createTempFile("document", ".edoc");
+		start = System.nanoTime();
+		encoded.save(file);
+		System.out.printf("Main: Saved %d KB in %d ms\n", file.length() / 1024, (System.nanoTime() - start) / 1000000);
+		start = System.nanoTime();
+		EncodedDocument loaded = EncodedDocument.load(file);
+		System.out.printf("Main: Loaded in %d ms, the word appears %d times\n", (System.nanoTime() - start) / 1000000,
+				loaded.count(pool, "the"));
+
+		file.delete();
+		pool.shutdown();
+	}
+}
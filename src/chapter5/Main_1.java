@@ -16,7 +16,7 @@ import java.util.concurrent.TimeUnit;
 public class Main_1 {
 	
 	/** 构建一个商品类。 */
-	private static class Product {
+	static class Product {
 		private String name;
 		private double price;
 		
@@ -36,7 +36,7 @@ public class Main_1 {
 	}
 	
 	/** 用来生成一个随机产品列表。*/
-	private static class ProductListGenerator {
+	static class ProductListGenerator {
 		
 		public List<Product> generate (int size) {
 			List<Product> ret = new ArrayList<Product>();
@@ -65,6 +65,32 @@ public class Main_1 {
 
 		private static final long serialVersionUID = 5916163458058732831L;
 		
+		/**
+		 * 一个任务最多更新的产品数，默认值是 10，开启 ThresholdTuner 后按本机的速度确定。
+		 * 最多 1000，保证 main() 中的 10000 件产品仍然会被拆分。
+		 */
+		private static final int THRESHOLD = ThresholdTuner.threshold("chapter5.Main_1.Task", 10, 1000, new ThresholdTuner.Sample() {
+			private List<Product> products;
+			
+			// 交替乘以 1.2 和 1 / 1.2，反复测量时价格不会一直增长到 Infinity。
+			private double factor = 1.2;
+			
+			@Override
+			protected void prepare(int size) {
+				products = new ProductListGenerator().generate(size);
+			}
+			
+			@Override
+			protected long run(int size) {
+				for (int i = 0; i < size; i++) {
+					Product product = products.get(i);
+					product.setPrice(product.getPrice() * factor);
+				}
+				factor = 1 / factor;
+				return (long) products.get(0).getPrice();
+			}
+		});
+		
 		/** 用来保存商品。*/
 		private List<Product> products;
 		
@@ -87,13 +113,13 @@ public class Main_1 {
 		@Override
 		protected void compute() {
 			
-			// 如果last和first的差值小于10，则增加产品的价格（用以模拟一个任务只能更新少于10件产品的价格）。
-		    if ((last-first) < 10) {
+			// 如果last和first的差值小于THRESHOLD，则增加产品的价格（一个任务只更新少于THRESHOLD件产品的价格）。
+		    if ((last-first) < THRESHOLD) {
                 updatePrices();
             } else {
             	
             	/*
-            	 * 如果last和first的差值大于等于10，就创建两个新的Task任务，
+            	 * 如果last和first的差值大于等于THRESHOLD，就创建两个新的Task任务，
             	 * 一个处理前一半的产品，另一个处理后一半的产品，然后调用ForkJoinPool的
             	 * invokeAll()方法，来执行这两个新的任务。
             	 */
@@ -1,5 +1,8 @@
 package chapter5;
 
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Random;
@@ -20,7 +23,7 @@ import java.util.concurrent.TimeUnit;
 public class Main_2 {
 	
 	/** 用来生成一个字符串矩阵来模拟一个文档。*/
-	private static class Document {
+	static class Document {
 		
 		/** 用来生成字符串矩阵。*/
 		private String words[] = {
@@ -60,6 +63,36 @@ public class Main_2 {
 		}
 	}
 	
+	/**
+	 * 一个叶子任务比较的单元格数，默认值是 100，开启 ThresholdTuner 后按本机的速度确定。
+	 * LineTask 原来的固定值是 100 个单元格，DocumentTask 原来的固定值是 10 行，现在按行的长度换算成行数。
+	 * 最多 250，保证 main() 中每行 1000 个单元格的文档在行内和行间都会被拆分。
+	 */
+	private static final int CELL_THRESHOLD = ThresholdTuner.threshold("chapter5.Main_2.LineTask", 100, 250, new ThresholdTuner.Sample() {
+		private String line[];
+		
+		@Override
+		protected void prepare(int size) {
+			String words[] = new Document().words;
+			Random random = new Random();
+			line = new String[size];
+			for (int i = 0; i < size; i++) {
+				line[i] = words[random.nextInt(words.length)];
+			}
+		}
+		
+		@Override
+		protected long run(int size) {
+			int counter = 0;
+			for (int i = 0; i < size; i++) {
+				if (line[i].equals("the")) {
+					counter++;
+				}
+			}
+			return counter;
+		}
+	});
+	
 	/** 用来统计所要查找的词在一行中出现的次数。*/
 	private static class LineTask extends RecursiveTask<Integer> {
 
@@ -85,11 +118,6 @@ public class Main_2 {
 				}
 			}
 			
-			// 为延缓范例的执行，将任务休眠10毫秒。
-			try {
-				Thread.sleep(10);
-			} catch (InterruptedException e) { e.printStackTrace(); }
-			
 			// 返回计数器的值。
 			return counter;
 		}
@@ -98,8 +126,8 @@ public class Main_2 {
 		protected Integer compute () {
 			int result = 0;
 			
-			// 如果end和start的差值小于100，那么将统计单词出现的次数。
-			if ((end - start) < 100) {
+			// 如果end和start的差值小于CELL_THRESHOLD，那么将统计单词出现的次数。
+			if ((end - start) < CELL_THRESHOLD) {
 				result = count(line, start, end, word);
 			} else {
 				
@@ -128,7 +156,7 @@ public class Main_2 {
 	}
 	
 	/** 用来计算所要查找的词在行中出现的次数。*/
-	private static class DocumentTask extends RecursiveTask<Integer> {
+	static class DocumentTask extends RecursiveTask<Integer> {
 
 		private static final long serialVersionUID = -7735280419882661212L;
 		
@@ -175,8 +203,8 @@ public class Main_2 {
 		@Override
 		protected Integer compute() {
 			int result = 0;
-			// 如果end和start的差值小于10，那么将按行统计单词出现的次数。
-			if ((end - start) < 10) {
+			// 如果end和start之间的行所包含的单元格数（按第一行的长度估算）小于CELL_THRESHOLD，那么将按行统计单词出现的次数。
+			if (start >= end || (end - start) < Math.max(1, CELL_THRESHOLD / Math.max(1, document[start].length))) {
 				result = processLines(document, start, end, word);
 			} else {
 				// 否则，把统计任务进行进行拆分。
@@ -202,7 +230,19 @@ public class Main_2 {
 		}
 	}
 	
-	public static void main(String[] args) {
+	public static void main(String[] args) throws IOException {
+		
+		// 运行参数为 “词 文件...” 时，用 MappedWordCounter 直接统计文件中的词，不生成文档矩阵。
+		if (args.length >= 2) {
+			ForkJoinPool pool = new ForkJoinPool();
+			MappedWordCounter counter = new MappedWordCounter(pool);
+			for (int i = 1; i < args.length; i++) {
+				long result = counter.count(Paths.get(args[i]), args[0], Charset.defaultCharset());
+				System.out.printf("Main: The word appears %d in %s\n", result, args[i]);
+			}
+			pool.shutdown();
+			return;
+		}
 		
 		// 创建一个 "100 * 1000" 的文档矩阵。
 		Document document = new Document();
@@ -25,7 +25,7 @@ import java.util.concurrent.TimeUnit;
 public class Main_3 {
 	
 	/** 用来处理文件夹。*/
-	private static class FolderProcessor extends RecursiveTask<List<String>> {
+	static class FolderProcessor extends RecursiveTask<List<String>> {
 
 		private static final long serialVersionUID = -536157197673565710L;
 		
@@ -0,0 +1,227 @@
+package chapter5;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * 直接在文件上统计一个词出现的次数，文件内容不需要先读成 String。
+ *
+ * Main_2 和 WordCounter 都要求整个文档先以 String[][] 的形式放在堆中，文档有几十 GB 时这是做不到的。
+ * MappedWordCounter 的做法是：
+ * 1、把文件按字节范围拆分成 ForkJoin 任务，拆分点向后移动到下一个空白字符（空格、制表符、换行），
+ *   所以一个词不会被拆到两个任务中；
+ * 2、叶子任务用 FileChannel#map() 把自己的范围映射到内存，直接比较字节，不解码成字符串；
+ * 3、每个叶子任务的映射不超过 MAX_LEAF_BYTES，文件再大，堆的使用量也不变，映射的内存由操作系统按页换入换出。
+ *
+ * 词与词之间用空白字符分隔。按字节比较对 UTF-8 以及所有兼容 ASCII 的字符集都是正确的。
+ *
+ * @author FrankTaylor <mailto:hubin@300.cn>
+ * @since 1.0
+ */
+public class MappedWordCounter {
+
+	/** 每个工作线程平均分到的叶子任务数。*/
+	private static final int LEAVES_PER_THREAD = 8;
+
+	/** 叶子任务处理的字节数的下限和上限。*/
+	private static final long MIN_LEAF_BYTES = 1024 * 1024;
+	private static final long MAX_LEAF_BYTES = 1024 * 1024 * 64;
+
+	private final ForkJoinPool pool;
+
+	public MappedWordCounter(ForkJoinPool pool) {
+		this.pool = pool;
+	}
+
+	/** 返回 word（按 charset 编码）在 file 中出现的次数。*/
+	public long count(Path file, String word, Charset charset) throws IOException {
+		byte pattern[] = word.getBytes(charset);
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+			long size = channel.size();
+			long threshold = size / ((long) pool.getParallelism() * LEAVES_PER_THREAD);
+			threshold = Math.min(MAX_LEAF_BYTES, Math.max(MIN_LEAF_BYTES, threshold));
+
+			RangeTask task = new RangeTask(channel, 0, size, pattern, threshold);
+			pool.invoke(task);
+			if (task.exception != null) {
+				throw task.exception;
+			}
+			return task.result;
+		}
+	}
+
+	static boolean isWhitespace(byte b) {
+		return b == ' ' || b == '\n' || b == '\r' || b == '\t';
+	}
+
+	/** 统计文件中 start 到 end 之间的字节。start 和 end 要么是文件的边界，要么是空白字符的位置。*/
+	private static class RangeTask extends RecursiveAction {
+
+		private static final long serialVersionUID = -2917764203418625570L;
+
+		private final FileChannel channel;
+		private final long start, end;
+		private final byte pattern[];
+		private final long threshold;
+
+		long result;
+		IOException exception;
+
+		RangeTask(FileChannel channel, long start, long end, byte pattern[], long threshold) {
+			this.channel = channel;
+			this.start = start;
+			this.end = end;
+			this.pattern = pattern;
+			this.threshold = threshold;
+		}
+
+		@Override
+		protected void compute() {
+			try {
+				if (end - start <= threshold) {
+					result = countRange();
+					return;
+				}
+
+				long mid = nextWhitespace(start + (end - start) / 2);
+				if (mid >= end) {
+					// 后半部分是一个很长的词，只能作为一个整体处理。
+					result = countRange();
+					return;
+				}
+				RangeTask task1 = new RangeTask(channel, start, mid, pattern, threshold);
+				RangeTask task2 = new RangeTask(channel, mid, end, pattern, threshold);
+				task1.fork();
+				task2.compute();
+				task1.join();
+				result = task1.result + task2.result;
+				exception = task1.exception != null ? task1.exception : task2.exception;
+			} catch (IOException e) {
+				exception = e;
+			}
+		}
+
+		/** 返回 position 之后（含）第一个空白字符的位置，没有则返回 end。*/
+		private long nextWhitespace(long position) throws IOException {
+			ByteBuffer buffer = ByteBuffer.allocate(1024 * 4);
+			while (position < end) {
+				buffer.clear();
+				int n = channel.read(buffer, position);
+				if (n <= 0) {
+					break;
+				}
+				for (int i = 0; i < n && position < end; i++, position++) {
+					if (isWhitespace(buffer.get(i))) {
+						return position;
+					}
+				}
+			}
+			return end;
+		}
+
+		/** 映射 start 到 end 之间的字节并统计。一次映射不能超过 2 GB，所以不支持比这更长的词。*/
+		private long countRange() throws IOException {
+			if (end - start > Integer.MAX_VALUE) {
+				throw new IOException("Word longer than " + Integer.MAX_VALUE + " bytes at " + start);
+			}
+			if (end == start) {
+				return 0;
+			}
+			MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, start, end - start);
+			return countWords(buffer, 0, buffer.limit(), pattern);
+		}
+	}
+
+	/** 统计 buffer 中 from 到 to 之间与 pattern 相等的词的个数。*/
+	static long countWords(ByteBuffer buffer, int from, int to, byte pattern[]) {
+		long counter = 0;
+		int i = from;
+		while (i < to) {
+			// 跳过空白字符。
+			while (i < to && isWhitespace(buffer.get(i))) {
+				i++;
+			}
+			int wordStart = i;
+
+			// 比较词的前缀，一旦不相等就不再比较。
+			int matched = 0;
+			while (i < to && !isWhitespace(buffer.get(i))) {
+				if (matched == i - wordStart && matched < pattern.length && buffer.get(i) == pattern[matched]) {
+					matched++;
+				}
+				i++;
+			}
+			if (i > wordStart && i - wordStart == pattern.length && matched == pattern.length) {
+				counter++;
+			}
+		}
+		return counter;
+	}
+
+	/** 用 Main_2.Document 的词表生成大约 megabytes MB 的文本文件，返回 word 出现的次数。*/
+	private static long generate(File file, int megabytes, String word) throws IOException {
+		String words[] = {"the", "hello", "goodbye", "packt", "java", "thread", "pool", "random", "class", "main"};
+		Random random = new Random();
+		long counter = 0;
+		long size = 0;
+		try (OutputStream out = new BufferedOutputStream(new FileOutputStream(file), 1024 * 64)) {
+			StringBuilder line = new StringBuilder();
+			while (size < (long) megabytes * 1024 * 1024) {
+				line.setLength(0);
+				for (int j = 0; j < 1000; j++) {
+					String w = words[random.nextInt(words.length)];
+					if (w.equals(word)) {
+						counter++;
+					}
+					line.append(w).append(j < 999 ? ' ' : '\n');
+				}
+				byte bytes[] = line.toString().getBytes("US-ASCII");
+				out.write(bytes);
+				size += bytes.length;
+			}
+		}
+		return counter;
+	}
+
+	public static void main(String[] args) throws IOException {
+		int megabytes = args.length > 0 ? Integer.parseInt(args[0]) : 512;
+		File file = File.createTempFile("words", ".txt");
+		file.deleteOnExit();
+
+		System.out.printf("Main: Generating %d MB in %s...\n", megabytes, file);
+		long expected = generate(file, megabytes, "the");
+
+		ForkJoinPool pool = new ForkJoinPool();
+		MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+		System.gc();
+		long heapBefore = memory.getHeapMemoryUsage().getUsed();
+
+		MappedWordCounter counter = new MappedWordCounter(pool);
+		for (int i = 0; i < 3; i++) {
+			long start = System.nanoTime();
+			long result = counter.count(file.toPath(), "the", Charset.forName("UTF-8"));
+			long elapsed = System.nanoTime() - start;
+			System.out.printf("Main: The word appears %d times (expected %d) in %d ms, %.0f MB/s\n", result, expected,
+					elapsed / 1000000, file.length() / 1024.0 / 1024.0 / (elapsed / 1e9));
+		}
+
+		System.gc();
+		System.out.printf("Main: Heap used before %d KB, after %d KB\n", heapBefore / 1024, memory.getHeapMemoryUsage().getUsed() / 1024);
+		pool.shutdown();
+		file.delete();
+	}
+}
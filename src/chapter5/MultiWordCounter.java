@@ -0,0 +1,151 @@
+package chapter5;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * 一次遍历文档，同时统计多个词各自出现的次数。
+ *
+ * DocumentTask 和 WordCounter 每遍历一次文档只能统计一个词，要统计 500 个词就要遍历 500 次。
+ * MultiWordCounter 先用要统计的词建立一个 “词 -> 下标” 的散列表，然后只遍历一次文档：
+ * 每个单元格查一次散列表，查到了就把对应下标的计数器加一。文档中的词已经分好了，所以不需要 Aho-Corasick 这样的子串匹配，
+ * 一次散列查找就够了。String 会缓存自己的散列值，文档中重复出现的词只在第一次查找时计算散列值。
+ *
+ * 任务的拆分方式与 DocumentTask 相同：按行的范围一分为二，直到行数不超过阈值；不同的是阈值由并行度决定，
+ * 叶子任务直接在循环中处理它的所有行，计数保存在自己的 long[] 中，最后逐层相加。
+ *
+ * @author FrankTaylor <mailto:hubin@300.cn>
+ * @since 1.0
+ */
+public class MultiWordCounter {
+
+	/** 每个工作线程平均分到的叶子任务数。*/
+	private static final int LEAVES_PER_THREAD = 8;
+
+	private final ForkJoinPool pool;
+
+	public MultiWordCounter(ForkJoinPool pool) {
+		this.pool = pool;
+	}
+
+	/** 返回 words 中每个词在 document 中出现的次数，下标与 words 相同。words 中重复的词只统计在第一次出现的下标上。*/
+	public long[] count(String document[][], String words[]) {
+		Map<String, Integer> dictionary = new HashMap<String, Integer>(words.length * 2);
+		for (int i = words.length - 1; i >= 0; i--) {
+			dictionary.put(words[i], i);
+		}
+
+		int threshold = Math.max(1, document.length / (pool.getParallelism() * LEAVES_PER_THREAD));
+		DocumentTask task = new DocumentTask(document, 0, document.length, dictionary, words.length, threshold);
+		pool.invoke(task);
+		return task.counts;
+	}
+
+	/** 统计文档中下标 start 到 end 之间的行。*/
+	private static class DocumentTask extends RecursiveAction {
+
+		private static final long serialVersionUID = 6093513284201376640L;
+
+		private final String document[][];
+		private final int start, end;
+		private final Map<String, Integer> dictionary;
+		private final int size;
+		private final int threshold;
+
+		long counts[];
+
+		DocumentTask(String document[][], int start, int end, Map<String, Integer> dictionary, int size, int threshold) {
+			this.document = document;
+			this.start = start;
+			this.end = end;
+			this.dictionary = dictionary;
+			this.size = size;
+			this.threshold = threshold;
+		}
+
+		@Override
+		protected void compute() {
+			if (end - start <= threshold) {
+				counts = processLines();
+			} else {
+				int mid = (start + end) >>> 1;
+				DocumentTask task1 = new DocumentTask(document, start, mid, dictionary, size, threshold);
+				DocumentTask task2 = new DocumentTask(document, mid, end, dictionary, size, threshold);
+				task1.fork();
+				task2.compute();
+				task1.join();
+
+				// 把右边的计数加到左边，不再创建新的数组。
+				counts = task1.counts;
+				for (int i = 0; i < size; i++) {
+					counts[i] += task2.counts[i];
+				}
+			}
+		}
+
+		private long[] processLines() {
+			long result[] = new long[size];
+			for (int i = start; i < end; i++) {
+				String line[] = document[i];
+				for (int j = 0; j < line.length; j++) {
+					Integer index = dictionary.get(line[j]);
+					if (index != null) {
+						result[index]++;
+					}
+				}
+			}
+			return result;
+		}
+	}
+
+	/** 生成 n 个要统计的词：前面是文档词表中的词，其余是文档中不存在的词。*/
+	private static String[] patterns(int n) {
+		String vocabulary[] = {"the", "hello", "goodbye", "packt", "java", "thread", "pool", "random", "class", "main"};
+		String words[] = new String[n];
+		for (int i = 0; i < n; i++) {
+			words[i] = i < vocabulary.length ? vocabulary[i] : "word" + i;
+		}
+		return words;
+	}
+
+	/** 比较 “每个词遍历一次” 与 “一次遍历统计所有词” 的耗时随词数增加的变化。*/
+	public static void main(String[] args) {
+		final String document[][] = new Main_2.Document().generateDocument(2000, 1000, "the");
+		ForkJoinPool pool = new ForkJoinPool();
+		WordCounter single = new WordCounter(pool);
+		MultiWordCounter multi = new MultiWordCounter(pool);
+
+		// 预热。
+		for (int i = 0; i < 5; i++) {
+			single.count(document, "the");
+			multi.count(document, patterns(100));
+		}
+
+		System.out.printf("%8s %14s %14s\n", "patterns", "one pass/word", "single pass");
+		for (int n : new int[] {1, 10, 100, 1000, 10000}) {
+			String words[] = patterns(n);
+
+			// 每个词遍历一次的方式到 1000 个词时已经太慢，只测到 100 个词。
+			String naive = "-";
+			if (n <= 100) {
+				long start = System.nanoTime();
+				for (String word : words) {
+					single.count(document, word);
+				}
+				naive = String.format("%.1f ms", (System.nanoTime() - start) / 1e6);
+			}
+
+			long best = Long.MAX_VALUE;
+			long counts[] = null;
+			for (int i = 0; i < 5; i++) {
+				long start = System.nanoTime();
+				counts = multi.count(document, words);
+				best = Math.min(best, System.nanoTime() - start);
+			}
+			System.out.printf("%8d %14s %11.1f ms   (the: %d)\n", n, naive, best / 1e6, counts[0]);
+		}
+		pool.shutdown();
+	}
+}
@@ -0,0 +1,405 @@
+package chapter5;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * 通用的并行归约（reduce），实际的程序中可以用它代替 Calculator 和 chapter7.Main_5.MyRecursiveTask 这样手写的区间求和。
+ *
+ * 这两个任务（以及 Main_4.Task）的共同问题是：结果类型是 Integer，每合并一次都要装箱、拆箱；拆分的阈值是写死的常量。
+ * 这两个例子本身仍然保留原来的写法：Calculator 演示的是 RecursiveTask 的拆分和 fork()/join() 的顺序，
+ * Main_5.MyRecursiveTask 演示的是自定义的工作线程统计各自执行了多少任务，换成 ParallelReduce 就看不到这些了；
+ * 它们的 main() 用 ParallelReduce 计算同样的结果作为对照。ParallelReduce 的做法是：
+ * 1、int、long、double 各有一套方法和一个运算接口（IntOperator、LongOperator、DoubleOperator），结果保存在任务的基本类型字段中；
+ * 2、运算必须满足结合律（例如加法、最小值、最大值、按位或），identity 是这个运算的单位元（加法是 0，最小值是 MAX_VALUE）；
+ * 3、阈值由数据量和线程池的并行度自动决定：大约拆分成 并行度 * LEAVES_PER_THREAD 个叶子任务，每个至少 MIN_LEAF_SIZE 个元素；
+ * 4、常用的求和运算（INT_SUM、LONG_SUM、DOUBLE_SUM）在叶子任务中直接展开成加法循环，不经过接口调用。
+ *
+ * 注意：double 的加法不严格满足结合律，并行求和的结果与顺序求和的结果可能在最后几位上不同。
+ *
+ * @author FrankTaylor <mailto:hubin@300.cn>
+ * @since 1.0
+ */
+public class ParallelReduce {
+
+	public interface IntOperator {
+		int apply(int left, int right);
+	}
+
+	public interface LongOperator {
+		long apply(long left, long right);
+	}
+
+	public interface DoubleOperator {
+		double apply(double left, double right);
+	}
+
+	public static final IntOperator INT_SUM = new IntOperator() {
+		@Override
+		public int apply(int left, int right) {
+			return left + right;
+		}
+	};
+
+	public static final IntOperator INT_MIN = new IntOperator() {
+		@Override
+		public int apply(int left, int right) {
+			return Math.min(left, right);
+		}
+	};
+
+	public static final IntOperator INT_MAX = new IntOperator() {
+		@Override
+		public int apply(int left, int right) {
+			return Math.max(left, right);
+		}
+	};
+
+	public static final LongOperator LONG_SUM = new LongOperator() {
+		@Override
+		public long apply(long left, long right) {
+			return left + right;
+		}
+	};
+
+	public static final LongOperator LONG_MIN = new LongOperator() {
+		@Override
+		public long apply(long left, long right) {
+			return Math.min(left, right);
+		}
+	};
+
+	public static final LongOperator LONG_MAX = new LongOperator() {
+		@Override
+		public long apply(long left, long right) {
+			return Math.max(left, right);
+		}
+	};
+
+	public static final DoubleOperator DOUBLE_SUM = new DoubleOperator() {
+		@Override
+		public double apply(double left, double right) {
+			return left + right;
+		}
+	};
+
+	public static final DoubleOperator DOUBLE_MIN = new DoubleOperator() {
+		@Override
+		public double apply(double left, double right) {
+			return Math.min(left, right);
+		}
+	};
+
+	public static final DoubleOperator DOUBLE_MAX = new DoubleOperator() {
+		@Override
+		public double apply(double left, double right) {
+			return Math.max(left, right);
+		}
+	};
+
+	/** 每个工作线程平均分到的叶子任务数，以及叶子任务最少处理的元素个数。*/
+	private static final int LEAVES_PER_THREAD = 8;
+	private static final int MIN_LEAF_SIZE = 1024 * 4;
+
+	private final ForkJoinPool pool;
+
+	public ParallelReduce(ForkJoinPool pool) {
+		this.pool = pool;
+	}
+
+	/** 叶子任务处理的元素个数。*/
+	long threshold(long size) {
+		return Math.max(MIN_LEAF_SIZE, size / ((long) pool.getParallelism() * LEAVES_PER_THREAD));
+	}
+
+	private static void checkRange(int length, int from, int to) {
+		if (from < 0 || to > length || from > to) {
+			throw new ArrayIndexOutOfBoundsException("from = " + from + ", to = " + to + ", length = " + length);
+		}
+	}
+
+	public int reduce(int array[], int identity, IntOperator operator) {
+		return reduce(array, 0, array.length, identity, operator);
+	}
+
+	/** 对 array 中下标 from（含）到 to（不含）之间的元素做归约。*/
+	public int reduce(int array[], int from, int to, int identity, IntOperator operator) {
+		checkRange(array.length, from, to);
+		IntTask task = new IntTask(array, from, to, identity, operator, (int) threshold(to - from));
+		pool.invoke(task);
+		return task.result;
+	}
+
+	public long reduce(long array[], long identity, LongOperator operator) {
+		return reduce(array, 0, array.length, identity, operator);
+	}
+
+	public long reduce(long array[], int from, int to, long identity, LongOperator operator) {
+		checkRange(array.length, from, to);
+		LongTask task = new LongTask(array, from, to, identity, operator, (int) threshold(to - from));
+		pool.invoke(task);
+		return task.result;
+	}
+
+	public double reduce(double array[], double identity, DoubleOperator operator) {
+		return reduce(array, 0, array.length, identity, operator);
+	}
+
+	public double reduce(double array[], int from, int to, double identity, DoubleOperator operator) {
+		checkRange(array.length, from, to);
+		DoubleTask task = new DoubleTask(array, from, to, identity, operator, (int) threshold(to - from));
+		pool.invoke(task);
+		return task.result;
+	}
+
+	/**
+	 * 对整数区间 start（含）到 end（不含）中的每个数本身做归约，例如 Calculator 计算的 0 + 1 + ... + (end - 1)。
+	 * 区间的长度 end - start 必须能用 long 表示。
+	 */
+	public long reduceRange(long start, long end, long identity, LongOperator operator) {
+		if (start > end || end - start < 0) {
+			throw new IllegalArgumentException("start = " + start + ", end = " + end);
+		}
+		RangeTask task = new RangeTask(start, end, identity, operator, threshold(end - start));
+		pool.invoke(task);
+		return task.result;
+	}
+
+	public int sum(int array[]) {
+		return reduce(array, 0, INT_SUM);
+	}
+
+	public long sum(long array[]) {
+		return reduce(array, 0L, LONG_SUM);
+	}
+
+	public double sum(double array[]) {
+		return reduce(array, 0.0, DOUBLE_SUM);
+	}
+
+	public long sumRange(long start, long end) {
+		return reduceRange(start, end, 0L, LONG_SUM);
+	}
+
+	private static class IntTask extends RecursiveAction {
+
+		private static final long serialVersionUID = 6710839126406235071L;
+
+		private final int array[];
+		private final int from, to;
+		private final int identity;
+		private final IntOperator operator;
+		private final int threshold;
+
+		int result;
+
+		IntTask(int array[], int from, int to, int identity, IntOperator operator, int threshold) {
+			this.array = array;
+			this.from = from;
+			this.to = to;
+			this.identity = identity;
+			this.operator = operator;
+			this.threshold = threshold;
+		}
+
+		@Override
+		protected void compute() {
+			if (to - from <= threshold) {
+				int value = identity;
+				if (operator == INT_SUM) {
+					for (int i = from; i < to; i++) {
+						value += array[i];
+					}
+				} else {
+					for (int i = from; i < to; i++) {
+						value = operator.apply(value, array[i]);
+					}
+				}
+				result = value;
+			} else {
+				int mid = from + (to - from) / 2;
+				IntTask left = new IntTask(array, from, mid, identity, operator, threshold);
+				IntTask right = new IntTask(array, mid, to, identity, operator, threshold);
+				right.fork();
+				left.compute();
+				right.join();
+				result = operator.apply(left.result, right.result);
+			}
+		}
+	}
+
+	private static class LongTask extends RecursiveAction {
+
+		private static final long serialVersionUID = -1683071935618227512L;
+
+		private final long array[];
+		private final int from, to;
+		private final long identity;
+		private final LongOperator operator;
+		private final int threshold;
+
+		long result;
+
+		LongTask(long array[], int from, int to, long identity, LongOperator operator, int threshold) {
+			this.array = array;
+			this.from = from;
+			this.to = to;
+			this.identity = identity;
+			this.operator = operator;
+			this.threshold = threshold;
+		}
+
+		@Override
+		protected void compute() {
+			if (to - from <= threshold) {
+				long value = identity;
+				if (operator == LONG_SUM) {
+					for (int i = from; i < to; i++) {
+						value += array[i];
+					}
+				} else {
+					for (int i = from; i < to; i++) {
+						value = operator.apply(value, array[i]);
+					}
+				}
+				result = value;
+			} else {
+				int mid = from + (to - from) / 2;
+				LongTask left = new LongTask(array, from, mid, identity, operator, threshold);
+				LongTask right = new LongTask(array, mid, to, identity, operator, threshold);
+				right.fork();
+				left.compute();
+				right.join();
+				result = operator.apply(left.result, right.result);
+			}
+		}
+	}
+
+	private static class DoubleTask extends RecursiveAction {
+
+		private static final long serialVersionUID = 4133416271880453806L;
+
+		private final double array[];
+		private final int from, to;
+		private final double identity;
+		private final DoubleOperator operator;
+		private final int threshold;
+
+		double result;
+
+		DoubleTask(double array[], int from, int to, double identity, DoubleOperator operator, int threshold) {
+			this.array = array;
+			this.from = from;
+			this.to = to;
+			this.identity = identity;
+			this.operator = operator;
+			this.threshold = threshold;
+		}
+
+		@Override
+		protected void compute() {
+			if (to - from <= threshold) {
+				double value = identity;
+				if (operator == DOUBLE_SUM) {
+					for (int i = from; i < to; i++) {
+						value += array[i];
+					}
+				} else {
+					for (int i = from; i < to; i++) {
+						value = operator.apply(value, array[i]);
+					}
+				}
+				result = value;
+			} else {
+				int mid = from + (to - from) / 2;
+				DoubleTask left = new DoubleTask(array, from, mid, identity, operator, threshold);
+				DoubleTask right = new DoubleTask(array, mid, to, identity, operator, threshold);
+				right.fork();
+				left.compute();
+				right.join();
+				result = operator.apply(left.result, right.result);
+			}
+		}
+	}
+
+	private static class RangeTask extends RecursiveAction {
+
+		private static final long serialVersionUID = -4462000926563271519L;
+
+		private final long start, end;
+		private final long identity;
+		private final LongOperator operator;
+		private final long threshold;
+
+		long result;
+
+		RangeTask(long start, long end, long identity, LongOperator operator, long threshold) {
+			this.start = start;
+			this.end = end;
+			this.identity = identity;
+			this.operator = operator;
+			this.threshold = threshold;
+		}
+
+		@Override
+		protected void compute() {
+			if (end - start <= threshold) {
+				long value = identity;
+				if (operator == LONG_SUM) {
+					for (long i = start; i < end; i++) {
+						value += i;
+					}
+				} else {
+					for (long i = start; i < end; i++) {
+						value = operator.apply(value, i);
+					}
+				}
+				result = value;
+			} else {
+				long mid = start + (end - start) / 2;
+				RangeTask left = new RangeTask(start, mid, identity, operator, threshold);
+				RangeTask right = new RangeTask(mid, end, identity, operator, threshold);
+				right.fork();
+				left.compute();
+				right.join();
+				result = operator.apply(left.result, right.result);
+			}
+		}
+	}
+
+	/** 与 chapter7.Main_5.MyRecursiveTask 同样的求和（结果装箱为 Integer，不拆分）比较。*/
+	public static void main(String[] args) {
+		final int SIZE = 50000000;
+		int array[] = new int[SIZE];
+		for (int i = 0; i < SIZE; i++) {
+			array[i] = i % 10;
+		}
+
+		ForkJoinPool pool = new ForkJoinPool();
+		ParallelReduce reduce = new ParallelReduce(pool);
+		for (int round = 0; round < 5; round++) {
+			long start = System.nanoTime();
+			Integer boxed = 0;
+			for (int i = 0; i < SIZE; i++) {
+				boxed += array[i];
+			}
+			long boxedTime = System.nanoTime() - start;
+
+			start = System.nanoTime();
+			int sum = reduce.sum(array);
+			long sumTime = System.nanoTime() - start;
+
+			start = System.nanoTime();
+			int max = reduce.reduce(array, Integer.MIN_VALUE, INT_MAX);
+			long maxTime = System.nanoTime() - start;
+
+			start = System.nanoTime();
+			long range = reduce.sumRange(0, SIZE);
+			long rangeTime = System.nanoTime() - start;
+
+			System.out.printf("Main: boxed %d (%.1f ms), sum %d (%.1f ms), max %d (%.1f ms), sumRange %d (%.1f ms)\n", boxed, boxedTime / 1e6,
+					sum, sumTime / 1e6, max, maxTime / 1e6, range, rangeTime / 1e6);
+		}
+		pool.shutdown();
+	}
+}
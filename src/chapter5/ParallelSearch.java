@@ -0,0 +1,167 @@
+package chapter5;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 可以提前结束的并行查找，用来代替 Main_5 中的 SearchNumberTask 和 TaskManager。
+ *
+ * Main_5 的做法有几个问题：TaskManager 用一个非线程安全的 ArrayList 保存创建过的所有任务，内存是 O(n) 的；
+ * 找到之后要遍历这个列表逐个调用 cancel()，而 cancel() 对已经开始执行的任务不起作用。
+ *
+ * ParallelSearch 不记录任何子任务，所有任务共享一个 AtomicInteger：
+ * 1、findAny()：任何一个叶子任务找到之后就把下标写入共享的结果，其他任务在开始处理之前、
+ *   以及叶子任务每处理 CHECK_INTERVAL 个元素时检查这个结果，已经找到就立即返回；
+ * 2、findFirst()：返回最小的下标。共享的结果是目前找到的最小下标，范围的起点不小于它的任务不可能找到更小的下标，
+ *   所以立即返回；每个任务先处理左半部分，左边找到之后，右边的任务大多还没开始就结束了。
+ *
+ * 除了共享的结果，只有从根到当前任务的这条路径上的任务对象是活着的，内存是 O(log n) 的。
+ *
+ * @author FrankTaylor <mailto:hubin@300.cn>
+ * @since 1.0
+ */
+public class ParallelSearch {
+
+	/** 找不到时返回的值。*/
+	public static final int NOT_FOUND = -1;
+
+	/** 每个工作线程平均分到的叶子任务数，以及叶子任务最少处理的元素个数。*/
+	private static final int LEAVES_PER_THREAD = 8;
+	private static final int MIN_LEAF_SIZE = 1024 * 4;
+
+	/** 叶子任务每处理这么多个元素检查一次是否可以结束。*/
+	private static final int CHECK_INTERVAL = 1024;
+
+	private final ForkJoinPool pool;
+
+	public ParallelSearch(ForkJoinPool pool) {
+		this.pool = pool;
+	}
+
+	/** 返回 number 在 numbers 中任意一个出现位置的下标，没有时返回 NOT_FOUND。*/
+	public int findAny(int numbers[], int number) {
+		AtomicInteger result = new AtomicInteger(NOT_FOUND);
+		pool.invoke(new SearchTask(numbers, 0, numbers.length, number, threshold(numbers.length), result, false));
+		return result.get();
+	}
+
+	/** 返回 number 在 numbers 中第一次出现位置的下标，没有时返回 NOT_FOUND。*/
+	public int findFirst(int numbers[], int number) {
+		AtomicInteger result = new AtomicInteger(Integer.MAX_VALUE);
+		pool.invoke(new SearchTask(numbers, 0, numbers.length, number, threshold(numbers.length), result, true));
+		return result.get() == Integer.MAX_VALUE ? NOT_FOUND : result.get();
+	}
+
+	private int threshold(int size) {
+		return Math.max(MIN_LEAF_SIZE, size / (pool.getParallelism() * LEAVES_PER_THREAD));
+	}
+
+	private static class SearchTask extends RecursiveAction {
+
+		private static final long serialVersionUID = 3817207443632152962L;
+
+		private final int numbers[];
+		private final int start, end;
+		private final int number;
+		private final int threshold;
+		private final AtomicInteger result;
+		private final boolean first;
+
+		SearchTask(int numbers[], int start, int end, int number, int threshold, AtomicInteger result, boolean first) {
+			this.numbers = numbers;
+			this.start = start;
+			this.end = end;
+			this.number = number;
+			this.threshold = threshold;
+			this.result = result;
+			this.first = first;
+		}
+
+		/** 已经找到的结果是否使这个范围内的查找变得没有必要。*/
+		private boolean done(int position) {
+			int found = result.get();
+			return first ? found <= position : found != NOT_FOUND;
+		}
+
+		@Override
+		protected void compute() {
+			if (done(start)) {
+				return;
+			}
+			if (end - start <= threshold) {
+				search();
+			} else {
+				int mid = (start + end) >>> 1;
+				SearchTask right = new SearchTask(numbers, mid, end, number, threshold, result, first);
+				right.fork();
+				new SearchTask(numbers, start, mid, number, threshold, result, first).compute();
+				right.join();
+			}
+		}
+
+		private void search() {
+			for (int block = start; block < end; block += CHECK_INTERVAL) {
+				if (done(block)) {
+					return;
+				}
+				int blockEnd = Math.min(end, block + CHECK_INTERVAL);
+				for (int i = block; i < blockEnd; i++) {
+					if (numbers[i] == number) {
+						found(i);
+						return;
+					}
+				}
+			}
+		}
+
+		private void found(int position) {
+			if (!first) {
+				result.compareAndSet(NOT_FOUND, position);
+				return;
+			}
+			int current;
+			while (position < (current = result.get()) && !result.compareAndSet(current, position));
+		}
+	}
+
+	/** 在 50,000,000 个 0 中放入几个 5，比较顺序查找、findAny() 和 findFirst()。*/
+	public static void main(String[] args) {
+		final int SIZE = 50000000;
+		int numbers[] = new int[SIZE];
+		int positions[] = {SIZE - 10, SIZE / 2 + 7, SIZE / 3};
+		for (int position : positions) {
+			numbers[position] = 5;
+		}
+
+		ForkJoinPool pool = new ForkJoinPool();
+		ParallelSearch search = new ParallelSearch(pool);
+		for (int round = 0; round < 5; round++) {
+			long start = System.nanoTime();
+			int sequential = NOT_FOUND;
+			for (int i = 0; i < SIZE; i++) {
+				if (numbers[i] == 5) {
+					sequential = i;
+					break;
+				}
+			}
+			long sequentialTime = System.nanoTime() - start;
+
+			start = System.nanoTime();
+			int any = search.findAny(numbers, 5);
+			long anyTime = System.nanoTime() - start;
+
+			start = System.nanoTime();
+			int first = search.findFirst(numbers, 5);
+			long firstTime = System.nanoTime() - start;
+
+			start = System.nanoTime();
+			int none = search.findFirst(numbers, 7);
+			long noneTime = System.nanoTime() - start;
+
+			System.out.printf("Main: sequential %d (%.2f ms), any %d (%.2f ms), first %d (%.2f ms), missing %d (%.2f ms)\n",
+					sequential, sequentialTime / 1e6, any, anyTime / 1e6, first, firstTime / 1e6, none, noneTime / 1e6);
+		}
+		pool.shutdown();
+	}
+}
@@ -0,0 +1,187 @@
+package chapter5;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * 按列存储的商品目录，用来代替 Main_1 中的 List&lt;Product&gt;。
+ *
+ * Main_1.Task 每更新一个商品都要调用 products.get(i)，再通过 Product 对象的 getter 和 setter 读写价格：
+ * 每个 Product 是堆上的一个独立对象，价格分散在内存各处，商品很多时每次访问几乎都是一次缓存未命中。
+ * ProductCatalog 把所有商品的价格放在一个连续的 double[] 中，名称放在另一个 String[] 中，商品用下标表示。
+ * 批量调价时只顺序地扫描价格数组，CPU 的预取和 JIT 的向量化都能发挥作用，速度取决于内存带宽，而不是指针跳转。
+ *
+ * 批量调价按数组下标范围拆分成大约 并行度 * LEAVES_PER_THREAD 个叶子任务，而不是像 Main_1.Task 那样拆分到少于 10 个商品。
+ *
+ * add() 不是线程安全的，应在调价之前完成；调价期间读取到的价格可能是调价之前的，也可能是调价之后的。
+ *
+ * @author FrankTaylor <mailto:hubin@300.cn>
+ * @since 1.0
+ */
+public class ProductCatalog {
+
+	/** 每个工作线程平均分到的叶子任务数，以及叶子任务最少处理的商品数。*/
+	private static final int LEAVES_PER_THREAD = 4;
+	private static final int MIN_LEAF_SIZE = 1024 * 16;
+
+	private String names[];
+	private double prices[];
+	private int size;
+
+	public ProductCatalog(int capacity) {
+		names = new String[capacity];
+		prices = new double[capacity];
+	}
+
+	/** 添加一个商品，返回它的下标。*/
+	public int add(String name, double price) {
+		if (size == prices.length) {
+			int capacity = Math.max(16, size + (size >> 1));
+			names = Arrays.copyOf(names, capacity);
+			prices = Arrays.copyOf(prices, capacity);
+		}
+		names[size] = name;
+		prices[size] = price;
+		return size++;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public String getName(int index) {
+		checkIndex(index);
+		return names[index];
+	}
+
+	public double getPrice(int index) {
+		checkIndex(index);
+		return prices[index];
+	}
+
+	public void setPrice(int index, double price) {
+		checkIndex(index);
+		prices[index] = price;
+	}
+
+	private void checkIndex(int index) {
+		if (index < 0 || index >= size) {
+			throw new IndexOutOfBoundsException("index = " + index + ", size = " + size);
+		}
+	}
+
+	/** 用 pool 把所有商品的价格都提高 increment（例如 0.20 表示提高 20%）。*/
+	public void increasePrices(ForkJoinPool pool, double increment) {
+		int threshold = threshold(pool, size);
+		pool.invoke(new IncreaseTask(prices, prices, 0, size, 1 + increment, threshold));
+	}
+
+	/** 把 source 中下标 first 到 last 之间的价格乘以 factor，写到 target 的相同位置。source 和 target 可以是同一个数组。*/
+	static class IncreaseTask extends RecursiveAction {
+
+		private static final long serialVersionUID = -6113858730935236893L;
+
+		private final double source[];
+		private final double target[];
+		private final int first, last;
+		private final double factor;
+		private final int threshold;
+
+		IncreaseTask(double source[], double target[], int first, int last, double factor, int threshold) {
+			this.source = source;
+			this.target = target;
+			this.first = first;
+			this.last = last;
+			this.factor = factor;
+			this.threshold = threshold;
+		}
+
+		@Override
+		protected void compute() {
+			if (last - first <= threshold) {
+				for (int i = first; i < last; i++) {
+					target[i] = source[i] * factor;
+				}
+			} else {
+				int middle = (first + last) >>> 1;
+				invokeAll(new IncreaseTask(source, target, first, middle, factor, threshold),
+						new IncreaseTask(source, target, middle, last, factor, threshold));
+			}
+		}
+	}
+
+	/** 叶子任务处理的商品数。*/
+	static int threshold(ForkJoinPool pool, int size) {
+		return Math.max(MIN_LEAF_SIZE, size / (pool.getParallelism() * LEAVES_PER_THREAD));
+	}
+
+	/** 与 Main_1.Task 相同的拆分方式和更新方式，只是不在控制台输出信息，用来与 ProductCatalog 比较。*/
+	private static class ListTask extends RecursiveAction {
+
+		private static final long serialVersionUID = 2590367131542711862L;
+
+		private final List<Main_1.Product> products;
+		private final int first, last;
+		private final double increment;
+
+		ListTask(List<Main_1.Product> products, int first, int last, double increment) {
+			this.products = products;
+			this.first = first;
+			this.last = last;
+			this.increment = increment;
+		}
+
+		@Override
+		protected void compute() {
+			if (last - first < 10) {
+				for (int i = first; i < last; i++) {
+					Main_1.Product product = products.get(i);
+					product.setPrice(product.getPrice() * (1 + increment));
+				}
+			} else {
+				int middle = (last + first) >>> 1;
+				invokeAll(new ListTask(products, first, middle + 1, increment), new ListTask(products, middle + 1, last, increment));
+			}
+		}
+	}
+
+	/** 运行参数是商品的个数，默认 5,000,000。*/
+	public static void main(String[] args) {
+		int size = args.length > 0 ? Integer.parseInt(args[0]) : 5000000;
+		final int ROUNDS = 10;
+
+		List<Main_1.Product> products = new Main_1.ProductListGenerator().generate(size);
+		ProductCatalog catalog = new ProductCatalog(size);
+		for (Main_1.Product product : products) {
+			catalog.add(product.getName(), product.getPrice());
+		}
+
+		ForkJoinPool pool = new ForkJoinPool();
+		long bestList = Long.MAX_VALUE, bestCatalog = Long.MAX_VALUE;
+		for (int i = 0; i < ROUNDS; i++) {
+			long start = System.nanoTime();
+			pool.invoke(new ListTask(products, 0, products.size(), 0.01));
+			bestList = Math.min(bestList, System.nanoTime() - start);
+
+			start = System.nanoTime();
+			catalog.increasePrices(pool, 0.01);
+			bestCatalog = Math.min(bestCatalog, System.nanoTime() - start);
+		}
+		pool.shutdown();
+
+		// 两种方式做的是同样的计算，结果应该完全相同。
+		int mismatches = 0;
+		for (int i = 0; i < size; i++) {
+			if (products.get(i).getPrice() != catalog.getPrice(i)) {
+				mismatches++;
+			}
+		}
+
+		System.out.printf("Main: %d products, parallelism %d, mismatches %d\n", size, pool.getParallelism(), mismatches);
+		System.out.printf("Main: List<Product>  : %8.2f ms\n", bestList / 1e6);
+		System.out.printf("Main: ProductCatalog : %8.2f ms, %.2f GB/s (%.1fx)\n", bestCatalog / 1e6,
+				size * 8.0 * 2 / bestCatalog, (double) bestList / bestCatalog);
+	}
+}
@@ -0,0 +1,250 @@
+package chapter5;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Properties;
+
+/**
+ * Fork/Join 任务拆分阈值的自动调节。
+ *
+ * 各个例子中的阈值都是随手写的常量（Calculator 和 LineTask 是 100，DocumentTask 和 Main_1.Task 是 10，
+ * chapter7.Main_6.Task 是 100），与任务实际的工作量和机器的速度都没有关系。阈值太小，任务的创建和调度开销超过任务本身；
+ * 阈值太大，任务太少，线程之间无法平衡负载。经验上，每个叶子任务做 10 到 100 微秒的工作比较合适。
+ *
+ * ThresholdTuner 用一个示例（Sample）测量不同规模的叶子任务的耗时：从 MIN_SIZE 开始每次翻倍，直到耗时超过 TARGET_NANOS（50 微秒），
+ * 再按比例算出正好需要 TARGET_NANOS 的规模。结果按 “主机名 + 处理器个数 + 任务类型” 保存在 java.io.tmpdir 下的
+ * fork-join-thresholds.properties 中，同一台机器上以后的运行直接使用保存的值，不再测量。
+ *
+ * 调节是需要主动开启的：阈值通常在类的静态初始化中取得，默认情况下 threshold() 直接返回任务原来的默认值，
+ * 不查询主机名、不读写文件，也不做任何测量。开启的方式有两种：
+ * 1、运行 ThresholdTuner 的 main()，测量所有例子的任务并保存到缓存文件；
+ * 2、运行时指定系统属性 threshold.tune=true，使用缓存文件中的值，缓存中没有的任务在第一次用到时测量。
+ * 另外，可以用系统属性 threshold.任务类型=N 直接指定某种任务的阈值。
+ *
+ * 调节得到的值不会超过调用者给出的上限，保证例子中的数据量仍然会被拆分成多个任务。
+ *
+ * @author FrankTaylor <mailto:hubin@300.cn>
+ * @since 1.0
+ */
+public final class ThresholdTuner {
+
+	/** 叶子任务的目标耗时（纳秒）。*/
+	static final long TARGET_NANOS = 50 * 1000;
+
+	private static final int MIN_SIZE = 1;
+	private static final int MAX_SIZE = 1 << 24;
+
+	/** 每种规模测量的次数（取最小值），以及测量前的预热次数。*/
+	private static final int SAMPLES = 7;
+	private static final int WARMUP = 2000;
+
+	private static final File CACHE_FILE = new File(System.getProperty("java.io.tmpdir"), "fork-join-thresholds.properties");
+
+	/** main() 测量的任务：初始化这些类时会调用 threshold()。*/
+	private static final String TASKS[] = {"chapter5.Calculator", "chapter5.Main_1$Task", "chapter5.Main_2", "chapter7.Main_6$Task"};
+
+	private static Properties cache;
+
+	/** 主机名 + 处理器个数，第一次需要时才查询，之后不再查询。*/
+	private static String hostKey;
+
+	/** 防止示例的计算结果被 JIT 当作死代码消除。*/
+	private static volatile long sink;
+
+	/** 一种任务的叶子任务的示例。*/
+	public static abstract class Sample {
+
+		/** 准备处理 size 个元素所需的数据，不计入耗时。*/
+		protected void prepare(int size) {}
+
+		/** 像叶子任务一样处理 size 个元素，返回任意一个与计算结果有关的值。反复调用时不能让数据溢出或发散。*/
+		protected abstract long run(int size);
+	}
+
+	private ThresholdTuner() {}
+
+	/** 与 threshold(type, defaultValue, Integer.MAX_VALUE, sample) 相同。*/
+	public static int threshold(String type, int defaultValue, Sample sample) {
+		return threshold(type, defaultValue, Integer.MAX_VALUE, sample);
+	}
+
+	/**
+	 * 返回 type 类任务的阈值（叶子任务处理的元素个数），结果至少为 1。没有开启调节时直接返回 defaultValue。
+	 *
+	 * @param type 任务类型，通常是类名
+	 * @param defaultValue 没有开启调节或测量失败时使用的值
+	 * @param maxValue 调节结果的上限
+	 * @param sample 叶子任务的示例
+	 */
+	public static synchronized int threshold(String type, int defaultValue, int maxValue, Sample sample) {
+		String override = System.getProperty("threshold." + type);
+		if (override != null) {
+			return Math.max(1, Integer.parseInt(override));
+		}
+		if (!Boolean.getBoolean("threshold.tune")) {
+			return defaultValue;
+		}
+
+		String key = hostKey() + "." + type;
+		String cached = cache().getProperty(key);
+		if (cached != null) {
+			try {
+				return clamp(Integer.parseInt(cached), maxValue);
+			} catch (NumberFormatException e) {
+				// 缓存文件被改坏了，重新测量。
+			}
+		}
+
+		int threshold;
+		try {
+			threshold = calibrate(sample);
+		} catch (RuntimeException e) {
+			e.printStackTrace();
+			return defaultValue;
+		}
+		cache.setProperty(key, Integer.toString(threshold));
+		update(key, Integer.toString(threshold));
+		System.out.printf("ThresholdTuner: %s = %d (at most %d)\n", type, threshold, maxValue);
+		return clamp(threshold, maxValue);
+	}
+
+	private static int clamp(int threshold, int maxValue) {
+		return Math.max(1, Math.min(maxValue, threshold));
+	}
+
+	/** 测量 sample，返回耗时大约为 TARGET_NANOS 的规模。*/
+	static int calibrate(Sample sample) {
+		// 预热，让 JIT 编译示例的代码。
+		sample.prepare(1024);
+		long value = 0;
+		for (int i = 0; i < WARMUP; i++) {
+			value += sample.run(1024);
+		}
+
+		int size = MIN_SIZE;
+		long nanos;
+		while (true) {
+			sample.prepare(size);
+			nanos = Long.MAX_VALUE;
+			for (int i = 0; i < SAMPLES; i++) {
+				long start = System.nanoTime();
+				value += sample.run(size);
+				nanos = Math.min(nanos, System.nanoTime() - start);
+			}
+			if (nanos >= TARGET_NANOS || size >= MAX_SIZE) {
+				break;
+			}
+			size *= 2;
+		}
+		sink = value;
+
+		long threshold = size * TARGET_NANOS / Math.max(1, nanos);
+		return (int) Math.max(MIN_SIZE, Math.min(MAX_SIZE, threshold));
+	}
+
+	private static String hostKey() {
+		if (hostKey == null) {
+			String host;
+			try {
+				host = InetAddress.getLocalHost().getHostName();
+			} catch (IOException e) {
+				host = "localhost";
+			}
+			hostKey = host + "." + Runtime.getRuntime().availableProcessors();
+		}
+		return hostKey;
+	}
+
+	private static Properties cache() {
+		if (cache == null) {
+			cache = read();
+		}
+		return cache;
+	}
+
+	private static Properties read() {
+		Properties properties = new Properties();
+		if (!CACHE_FILE.isFile()) {
+			return properties;
+		}
+		try {
+			InputStream in = new FileInputStream(CACHE_FILE);
+			try {
+				properties.load(in);
+			} finally {
+				in.close();
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		return properties;
+	}
+
+	/**
+	 * 重新读取缓存文件，设置 key（value 为 null 时删除所有以 key 开头的项），再写回。
+	 * 先写到同一目录下的临时文件，再原子地改名，同时运行的多个 JVM 不会写坏文件，也不会读到写了一半的文件。
+	 * 两个 JVM 同时更新时，后写的一方可能覆盖先写的一方新增的项，这只会导致那一项下次重新测量。
+	 */
+	private static void update(String key, String value) {
+		Properties properties = read();
+		if (value != null) {
+			properties.setProperty(key, value);
+		} else {
+			for (String name : properties.stringPropertyNames()) {
+				if (name.startsWith(key)) {
+					properties.remove(name);
+				}
+			}
+		}
+
+		File tmp = null;
+		try {
+			tmp = File.createTempFile(CACHE_FILE.getName(), ".tmp", CACHE_FILE.getAbsoluteFile().getParentFile());
+			OutputStream out = new FileOutputStream(tmp);
+			try {
+				properties.store(out, "Fork/Join thresholds, see chapter5.ThresholdTuner");
+			} finally {
+				out.close();
+			}
+			Files.move(tmp.toPath(), CACHE_FILE.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+		} catch (IOException e) {
+			e.printStackTrace();
+		} finally {
+			if (tmp != null && tmp.exists()) {
+				tmp.delete();
+			}
+		}
+	}
+
+	/**
+	 * 不带参数时，重新测量所有例子的任务并保存到缓存文件，之后用 -Dthreshold.tune=true 运行例子即可使用这些值；
+	 * 参数为 clear 时，输出并删除本机缓存的所有阈值。
+	 */
+	public static void main(String[] args) throws ClassNotFoundException {
+		synchronized (ThresholdTuner.class) {
+			String prefix = hostKey() + ".";
+			for (String key : cache().stringPropertyNames()) {
+				if (key.startsWith(prefix)) {
+					System.out.printf("ThresholdTuner: Removed %s = %s\n", key.substring(prefix.length()), cache.getProperty(key));
+					cache.remove(key);
+				}
+			}
+			update(prefix, null);
+		}
+		if (args.length > 0 && "clear".equals(args[0])) {
+			return;
+		}
+
+		System.setProperty("threshold.tune", "true");
+		for (String task : TASKS) {
+			Class.forName(task, true, ThresholdTuner.class.getClassLoader());
+		}
+	}
+}
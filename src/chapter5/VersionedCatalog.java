@@ -0,0 +1,170 @@
+package chapter5;
+
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 带版本号、写时复制（copy-on-write）的商品目录。
+ *
+ * 在 Main_1 和 ProductCatalog 中，调价任务直接修改价格，调价进行到一半时，读取者会看到一部分商品是新价格、另一部分是旧价格。
+ * VersionedCatalog 的每个版本（Snapshot）都是不可变的：
+ * 1、调价时用 Fork/Join 并行地把旧版本的价格乘以系数写到一个新的价格数组中，读取者完全看不到这个数组；
+ * 2、新版本构建完成后，通过对一个 volatile 字段的一次写操作发布出去，之后的读取者看到的都是新版本；
+ * 3、读取者调用 snapshot() 得到当前版本，只是一次 volatile 读，不加锁、不等待，也不会被调价阻塞。
+ *   在同一个 Snapshot 上的所有读取看到的都是同一个版本的价格。
+ *
+ * 多个调价操作之间用一个锁串行执行，保证每个新版本都基于最新的版本，不会丢失更新。
+ * 商品名称在各个版本之间共享，只有价格数组会被复制，所以每次调价需要一个价格数组大小的额外内存，
+ * 旧版本在没有读取者引用之后由垃圾回收器回收。
+ *
+ * @author FrankTaylor <mailto:hubin@300.cn>
+ * @since 1.0
+ */
+public class VersionedCatalog {
+
+	/** 目录的一个不可变版本。*/
+	public static final class Snapshot {
+
+		private final long version;
+		private final String names[];
+		private final double prices[];
+
+		Snapshot(long version, String names[], double prices[]) {
+			this.version = version;
+			this.names = names;
+			this.prices = prices;
+		}
+
+		public long getVersion() {
+			return version;
+		}
+
+		public int size() {
+			return prices.length;
+		}
+
+		public String getName(int index) {
+			return names[index];
+		}
+
+		public double getPrice(int index) {
+			return prices[index];
+		}
+	}
+
+	private final ForkJoinPool pool;
+	private final ReentrantLock writeLock = new ReentrantLock();
+	private volatile Snapshot current;
+
+	/** 用 catalog 中当前的商品和价格创建版本 0。*/
+	public VersionedCatalog(ProductCatalog catalog, ForkJoinPool pool) {
+		this.pool = pool;
+		String names[] = new String[catalog.size()];
+		double prices[] = new double[catalog.size()];
+		for (int i = 0; i < names.length; i++) {
+			names[i] = catalog.getName(i);
+			prices[i] = catalog.getPrice(i);
+		}
+		this.current = new Snapshot(0, names, prices);
+	}
+
+	/** 返回当前版本。不加锁，不会阻塞。*/
+	public Snapshot snapshot() {
+		return current;
+	}
+
+	/** 把所有商品的价格提高 increment（例如 0.20 表示提高 20%），返回发布的新版本。*/
+	public Snapshot increasePrices(double increment) {
+		writeLock.lock();
+		try {
+			Snapshot old = current;
+			double prices[] = new double[old.prices.length];
+			int threshold = ProductCatalog.threshold(pool, prices.length);
+			pool.invoke(new ProductCatalog.IncreaseTask(old.prices, prices, 0, prices.length, 1 + increment, threshold));
+
+			// ForkJoinPool#invoke() 返回时所有子任务的写操作都已对当前线程可见，
+			// 对 volatile 字段的写操作再把它们连同新版本一起发布给读取者。
+			Snapshot snapshot = new Snapshot(old.version + 1, old.names, prices);
+			current = snapshot;
+			return snapshot;
+		} finally {
+			writeLock.unlock();
+		}
+	}
+
+	/**
+	 * 调价的同时，读取者不断地读取随机的两个商品的价格。所有商品的初始价格都相同，每次调价的幅度也相同，
+	 * 所以同一时刻所有商品的价格应该相等，读到两个不同的价格说明读到了 “一半新、一半旧” 的目录。
+	 * 分别在 ProductCatalog（原地修改）和 VersionedCatalog 上运行。
+	 */
+	public static void main(String[] args) throws InterruptedException {
+		final int SIZE = 2000000;
+		final int READERS = 2;
+		final int UPDATES = 50;
+
+		final ProductCatalog catalog = new ProductCatalog(SIZE);
+		for (int i = 0; i < SIZE; i++) {
+			catalog.add("Product " + i, 10);
+		}
+		ForkJoinPool pool = new ForkJoinPool();
+		final VersionedCatalog versioned = new VersionedCatalog(catalog, pool);
+
+		for (final boolean useVersions : new boolean[] {false, true}) {
+			final AtomicBoolean running = new AtomicBoolean(true);
+			final AtomicLong reads = new AtomicLong();
+			final AtomicLong torn = new AtomicLong();
+
+			Thread readers[] = new Thread[READERS];
+			for (int r = 0; r < READERS; r++) {
+				readers[r] = new Thread(new Runnable() {
+					@Override
+					public void run() {
+						Random random = new Random();
+						long n = 0, t = 0;
+						while (running.get()) {
+							double a, b;
+							if (useVersions) {
+								Snapshot snapshot = versioned.snapshot();
+								a = snapshot.getPrice(random.nextInt(SIZE));
+								b = snapshot.getPrice(random.nextInt(SIZE));
+							} else {
+								a = catalog.getPrice(random.nextInt(SIZE));
+								b = catalog.getPrice(random.nextInt(SIZE));
+							}
+							if (a != b) {
+								t++;
+							}
+							n++;
+						}
+						reads.addAndGet(n);
+						torn.addAndGet(t);
+					}
+				}, "Reader-" + r);
+				readers[r].start();
+			}
+
+			long start = System.nanoTime();
+			for (int i = 0; i < UPDATES; i++) {
+				if (useVersions) {
+					versioned.increasePrices(0.01);
+				} else {
+					catalog.increasePrices(pool, 0.01);
+				}
+			}
+			long elapsed = System.nanoTime() - start;
+			running.set(false);
+			for (Thread reader : readers) {
+				reader.join();
+			}
+
+			System.out.printf("Main: %-16s: %d updates in %d ms, %d reads, %d inconsistent reads%s\n",
+					useVersions ? "VersionedCatalog" : "ProductCatalog", UPDATES, TimeUnit.NANOSECONDS.toMillis(elapsed),
+					reads.get(), torn.get(), useVersions ? ", version " + versioned.snapshot().getVersion() : "");
+		}
+		pool.shutdown();
+	}
+}
@@ -0,0 +1,204 @@
+package chapter5;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * 统计一个词在文档（字符串矩阵）中出现的次数，用来代替 Main_2 中的 DocumentTask 和 LineTask。
+ *
+ * Main_2 的做法在文档较大时开销主要不在比较字符串上，而在于：
+ * 1、DocumentTask#processLines() 为每一行创建一个 LineTask，行数越多，任务对象越多；
+ * 2、每个任务的结果都是 Integer，合并时要装箱、拆箱；
+ * 3、用 get() 等待子任务，它会阻塞当前工作线程，并且要处理 InterruptedException 和 ExecutionException。
+ *
+ * WordCounter 的做法是：
+ * 1、任务按 “单元格数” 拆分，而不是按行数拆分。拆分的粒度由线程池的并行度决定：整个文档被切成大约
+ *   并行度 * LEAVES_PER_THREAD 块，既能让每个线程有活干、能互相窃取，又不会产生大量的小任务；
+ * 2、叶子任务在一个普通的循环中统计它负责的所有行，不再为每一行创建任务；
+ * 3、任务继承 RecursiveAction，结果保存在 long 类型的字段中，用 join() 等待子任务，全程没有装箱。
+ *
+ * 一行特别长（单元格数超过拆分粒度）时，会继续按列拆分这一行。
+ *
+ * @author FrankTaylor <mailto:hubin@300.cn>
+ * @since 1.0
+ */
+public class WordCounter {
+
+	/** 每个工作线程平均分到的叶子任务数，多于 1 是为了在各块耗时不均时还能互相窃取。*/
+	private static final int LEAVES_PER_THREAD = 8;
+
+	/** 叶子任务最少处理的单元格数，太小的文档不值得拆分。*/
+	private static final int MIN_LEAF_CELLS = 1024 * 4;
+
+	private final ForkJoinPool pool;
+
+	public WordCounter(ForkJoinPool pool) {
+		this.pool = pool;
+	}
+
+	/** 返回 word 在 document 中出现的次数。*/
+	public long count(String document[][], String word) {
+		long cells = 0;
+		for (String line[] : document) {
+			cells += line.length;
+		}
+		long threshold = Math.max(MIN_LEAF_CELLS, cells / ((long) pool.getParallelism() * LEAVES_PER_THREAD));
+
+		RowsTask task = new RowsTask(document, 0, document.length, cells, word, threshold);
+		pool.invoke(task);
+		return task.result;
+	}
+
+	/** 统计 line 下标 start 到 end 之间 word 出现的次数。*/
+	static long countLine(String line[], int start, int end, String word) {
+		long counter = 0;
+		for (int i = start; i < end; i++) {
+			if (word.equals(line[i])) {
+				counter++;
+			}
+		}
+		return counter;
+	}
+
+	/** 统计文档中下标 start 到 end 之间的行。*/
+	private static class RowsTask extends RecursiveAction {
+
+		private static final long serialVersionUID = 3271648730541281635L;
+
+		private final String document[][];
+		private final int start, end;
+		private final long cells;
+		private final String word;
+		private final long threshold;
+
+		long result;
+
+		RowsTask(String document[][], int start, int end, long cells, String word, long threshold) {
+			this.document = document;
+			this.start = start;
+			this.end = end;
+			this.cells = cells;
+			this.word = word;
+			this.threshold = threshold;
+		}
+
+		@Override
+		protected void compute() {
+			if (cells <= threshold) {
+				long counter = 0;
+				for (int i = start; i < end; i++) {
+					counter += countLine(document[i], 0, document[i].length, word);
+				}
+				result = counter;
+			} else if (end - start == 1) {
+				// 只剩一行，但这一行太长，按列拆分。
+				ColumnsTask task = new ColumnsTask(document[start], 0, document[start].length, word, threshold);
+				task.compute();
+				result = task.result;
+			} else {
+				// 找到使两边单元格数大致相等的那一行。
+				int mid = start;
+				long left = 0;
+				while (mid < end - 1 && left + document[mid].length <= cells / 2) {
+					left += document[mid++].length;
+				}
+				if (mid == start) {
+					left += document[mid++].length;
+				}
+
+				RowsTask task1 = new RowsTask(document, start, mid, left, word, threshold);
+				RowsTask task2 = new RowsTask(document, mid, end, cells - left, word, threshold);
+				task1.fork();
+				task2.compute();
+				task1.join();
+				result = task1.result + task2.result;
+			}
+		}
+	}
+
+	/** 统计一行中下标 start 到 end 之间的单元格。*/
+	private static class ColumnsTask extends RecursiveAction {
+
+		private static final long serialVersionUID = -5532405419960735839L;
+
+		private final String line[];
+		private final int start, end;
+		private final String word;
+		private final long threshold;
+
+		long result;
+
+		ColumnsTask(String line[], int start, int end, String word, long threshold) {
+			this.line = line;
+			this.start = start;
+			this.end = end;
+			this.word = word;
+			this.threshold = threshold;
+		}
+
+		@Override
+		protected void compute() {
+			if (end - start <= threshold) {
+				result = countLine(line, start, end, word);
+			} else {
+				int mid = (start + end) >>> 1;
+				ColumnsTask task1 = new ColumnsTask(line, start, mid, word, threshold);
+				ColumnsTask task2 = new ColumnsTask(line, mid, end, word, threshold);
+				task1.fork();
+				task2.compute();
+				task1.join();
+				result = task1.result + task2.result;
+			}
+		}
+	}
+
+	/** 运行 rounds 轮，返回最快一轮的耗时（纳秒）。*/
+	private static long bestOf(int rounds, Runnable body) {
+		long best = Long.MAX_VALUE;
+		for (int i = 0; i < rounds; i++) {
+			long start = System.nanoTime();
+			body.run();
+			best = Math.min(best, System.nanoTime() - start);
+		}
+		return best;
+	}
+
+	/**
+	 * 与 Main_2.DocumentTask 比较。这里没有使用 JMH（本书的例子都不依赖第三方库），而是采用 JMH 的基本做法：
+	 * 先预热若干轮让 JIT 完成编译，再测量若干轮取最快的一轮，并且使用每一轮的结果，避免被当作死代码消除。
+	 */
+	public static void main(String[] args) {
+		final int lines = args.length > 0 ? Integer.parseInt(args[0]) : 10000;
+		final int words = args.length > 1 ? Integer.parseInt(args[1]) : 1000;
+		final int WARMUP = 5, ROUNDS = 10;
+
+		final String document[][] = new Main_2.Document().generateDocument(lines, words, "the");
+		final ForkJoinPool pool = new ForkJoinPool();
+		final WordCounter counter = new WordCounter(pool);
+		final long results[] = new long[2];
+
+		Runnable documentTask = new Runnable() {
+			@Override
+			public void run() {
+				results[0] = pool.invoke(new Main_2.DocumentTask(document, 0, lines, "the"));
+			}
+		};
+		Runnable wordCounter = new Runnable() {
+			@Override
+			public void run() {
+				results[1] = counter.count(document, "the");
+			}
+		};
+
+		bestOf(WARMUP, documentTask);
+		long documentTaskTime = bestOf(ROUNDS, documentTask);
+		bestOf(WARMUP, wordCounter);
+		long wordCounterTime = bestOf(ROUNDS, wordCounter);
+		pool.shutdown();
+
+		System.out.printf("Main: %d x %d words, parallelism %d\n", lines, words, pool.getParallelism());
+		System.out.printf("Main: DocumentTask: %d, %8.2f ms\n", results[0], documentTaskTime / 1e6);
+		System.out.printf("Main: WordCounter : %d, %8.2f ms (%.1fx)\n", results[1], wordCounterTime / 1e6,
+				(double) documentTaskTime / wordCounterTime);
+	}
+}
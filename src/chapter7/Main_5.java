@@ -1,5 +1,7 @@
 package chapter7;
 
+import chapter5.ParallelReduce;
+
 import java.util.concurrent.ForkJoinPool;
 import java.util.concurrent.ForkJoinPool.ForkJoinWorkerThreadFactory;
 import java.util.concurrent.ExecutionException;
@@ -140,12 +142,16 @@ public class Main_5 {
 		// 使用 join() 方法等待任务结束。
 		task.join();
 		
+		// 同样的求和也可以用 chapter5.ParallelReduce 完成：没有装箱，并且会按数据量和并行度拆分成多个子任务。
+		int reduced = new ParallelReduce(pool).sum(array);
+		
 		// 使用 shutdown() 方法关闭 pool 对象。
 		pool.shutdown();
 		// 使用 awaitTermination() 方法等待执行器结束。
 		pool.awaitTermination(1, TimeUnit.DAYS);
 		
 		System.out.printf("Main: Result: %d\n", task.get());
+		System.out.printf("Main: ParallelReduce result: %d\n", reduced);
 		System.out.printf("Main: End of the program\n");
 	}
 }
\ No newline at end of file
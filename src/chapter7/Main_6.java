@@ -1,5 +1,7 @@
 package chapter7;
 
+import chapter5.ThresholdTuner;
+
 import java.util.Date;
 import java.util.concurrent.ForkJoinPool;
 import java.util.concurrent.ForkJoinTask;
@@ -59,6 +61,27 @@ public class Main_6 {
 	
 	private static class Task extends MyWorkerTask {
 		
+		/**
+		 * 一个任务最多处理的元素个数，默认值是 100，开启 ThresholdTuner 后按本机的速度确定。
+		 * 测量时不包括叶子任务中模拟额外耗时的 sleep()。最多 1000，保证 main() 中 10000 个元素的数组仍然会被拆分。
+		 */
+		private static final int THRESHOLD = ThresholdTuner.threshold("chapter7.Main_6.Task", 100, 1000, new ThresholdTuner.Sample() {
+			private int array[];
+			
+			@Override
+			protected void prepare(int size) {
+				array = new int[size];
+			}
+			
+			@Override
+			protected long run(int size) {
+				for (int i = 0; i < size; i++) {
+					array[i]++;
+				}
+				return array[0];
+			}
+		});
+		
 		private int[] array;
 		private int start;
 		private int end;
@@ -72,7 +95,7 @@ public class Main_6 {
 		
 		@Override
 		protected void compute() {
-			if ((end - start) > 100) {
+			if ((end - start) > THRESHOLD) {
 				int mid = (end + start) / 2;
 				Task task1 = new Task(this.getName() + "1", array, start, mid);
 				Task task2 = new Task(this.getName() + "2", array, mid, end);
@@ -0,0 +1,67 @@
+package tcp;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 直接缓冲区（Direct ByteBuffer）池。
+ *
+ * 直接缓冲区的分配和回收代价都比较高（需要调用本地方法，并依赖 Full GC 或 Cleaner 来释放堆外内存），
+ * 但是通过它读写 SocketChannel 时可以少一次 “堆内存 -> 堆外内存” 的拷贝。所以这里把用完的缓冲区放回池中重复使用，
+ * 而不是每次读写都重新分配。
+ *
+ * @author FrankTaylor <mailto:hubin@300.cn>
+ * @since 1.0
+ */
+public class BufferPool {
+
+	/** 每个缓冲区的容量。*/
+	private final int bufferSize;
+
+	/** 池中最多保留的空闲缓冲区个数，超出的部分直接丢弃，交给 GC 回收。*/
+	private final int maxPooled;
+
+	private final ConcurrentLinkedQueue<ByteBuffer> free = new ConcurrentLinkedQueue<ByteBuffer>();
+	private final AtomicInteger pooled = new AtomicInteger();
+
+	public BufferPool(int bufferSize, int maxPooled) {
+		if (bufferSize <= 0 || maxPooled < 0) {
+			throw new IllegalArgumentException("bufferSize = " + bufferSize + ", maxPooled = " + maxPooled);
+		}
+		this.bufferSize = bufferSize;
+		this.maxPooled = maxPooled;
+	}
+
+	/** 从池中取出一个已清空的缓冲区，如果池中没有空闲的缓冲区就新分配一个。*/
+	public ByteBuffer acquire() {
+		ByteBuffer buffer = free.poll();
+		if (buffer == null) {
+			return ByteBuffer.allocateDirect(bufferSize);
+		}
+		pooled.decrementAndGet();
+		buffer.clear();
+		return buffer;
+	}
+
+	/** 把缓冲区归还到池中。归还之后调用者不能再使用这个缓冲区（包括由它产生的 slice）。*/
+	public void release(ByteBuffer buffer) {
+		if (buffer == null || !buffer.isDirect() || buffer.capacity() != bufferSize) {
+			return;
+		}
+		if (pooled.incrementAndGet() <= maxPooled) {
+			free.offer(buffer);
+		} else {
+			pooled.decrementAndGet();
+		}
+	}
+
+	public int getBufferSize() {
+		return bufferSize;
+	}
+
+	/** 返回池中当前空闲的缓冲区个数。*/
+	public int getPooledCount() {
+		return pooled.get();
+	}
+}
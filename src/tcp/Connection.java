@@ -0,0 +1,287 @@
+package tcp;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+
+/**
+ * NioServer 中的一个客户端连接。
+ *
+ * 每个连接在创建时被绑定到一个 Reactor 上，此后它的所有读写都由这个 Reactor 线程完成。
+ * write() 和 close() 可以在任何线程中调用，非 Reactor 线程的调用会被转交给 Reactor 线程执行。
+ *
+ * 待写队列有高低两个水位线：待写的字节数超过高水位线时，Reactor 暂停从这个连接读取数据（不再关注 OP_READ），
+ * 对端发来的请求会堆积在内核的接收缓冲区中，进而通过 TCP 的滑动窗口让对端的写操作也慢下来；待写的字节数降到
+ * 低水位线以下时再恢复读取。这样，一个读得很慢的客户端不会让服务端无限制地缓存发给它的响应。
+ * 注意：检查水位线的粒度是一次读取，已经读到的数据仍会交给 Handler 处理，所以待写的字节数最多会超出高水位线
+ * “一次读取所产生的响应” 那么多。
+ *
+ * @author FrankTaylor <mailto:hubin@300.cn>
+ * @since 1.0
+ */
+public class Connection {
+
+	private final SocketChannel channel;
+	private final NioServer.Reactor reactor;
+	private final Handler handler;
+	private final BufferPool pool;
+
+	/** 等待写出的数据，元素是 ByteBuffer 或 FileRegion。*/
+	private final ArrayDeque<Object> outbound = new ArrayDeque<Object>();
+
+	/** 待写队列中 ByteBuffer 的剩余字节数之和（FileRegion 不占用内存，不计算在内）。*/
+	private long pendingBytes;
+
+	private final int lowWaterMark;
+	private final int highWaterMark;
+
+	/** 是否因为待写的数据太多而暂停了读取，只在 Reactor 线程中访问。*/
+	private boolean readPaused;
+
+	/** 聚集写（gathering write）时使用的数组，只在 Reactor 线程中访问。*/
+	private final ByteBuffer gather[] = new ByteBuffer[64];
+
+	private SelectionKey key;
+	private volatile boolean closed;
+
+	/** 供 Handler 保存与连接相关的状态。*/
+	private volatile Object attachment;
+
+	Connection(SocketChannel channel, NioServer.Reactor reactor, Handler handler, BufferPool pool, int lowWaterMark, int highWaterMark) {
+		this.channel = channel;
+		this.reactor = reactor;
+		this.handler = handler;
+		this.pool = pool;
+		this.lowWaterMark = lowWaterMark;
+		this.highWaterMark = highWaterMark;
+	}
+
+	void setKey(SelectionKey key) {
+		this.key = key;
+	}
+
+	/** 由 Reactor 线程在连接可读时调用。*/
+	void read() throws IOException {
+		ByteBuffer buffer = pool.acquire();
+		try {
+			int n = channel.read(buffer);
+			if (n < 0) {
+				close();
+				return;
+			}
+			if (n > 0) {
+				buffer.flip();
+				handler.onRead(this, buffer);
+			}
+		} finally {
+			pool.release(buffer);
+		}
+	}
+
+	/**
+	 * 把 data 中剩余的字节加入待写队列。调用之后不能再修改 data。
+	 *
+	 * 非阻塞 SocketChannel 每次 write() 不一定能把数据全部写出，剩下的部分由 Reactor 在连接可写（OP_WRITE）时继续写。
+	 */
+	public void write(ByteBuffer data) {
+		enqueue(data);
+	}
+
+	/**
+	 * 把文件的一段区域加入待写队列。写出时使用 FileChannel#transferTo()，在 Linux 上对应 sendfile 系统调用，
+	 * 文件内容直接从页缓存发送到 Socket，不经过用户空间。写完（或连接关闭）后 region 会被关闭。
+	 */
+	public void write(FileRegion region) {
+		enqueue(region);
+	}
+
+	private void enqueue(Object data) {
+		boolean first;
+		synchronized (outbound) {
+			if (closed) {
+				if (data instanceof FileRegion) {
+					((FileRegion) data).close();
+				}
+				return;
+			}
+			first = outbound.isEmpty();
+			outbound.add(data);
+			if (data instanceof ByteBuffer) {
+				pendingBytes += ((ByteBuffer) data).remaining();
+			}
+		}
+
+		if (reactor.inEventLoop()) {
+			if (first) {
+				flushQuietly();
+			} else {
+				// 队列原来不为空，说明已经在等待 OP_WRITE 了，这里只需要检查是否超过了高水位线。
+				updateInterest();
+			}
+		} else if (first) {
+			reactor.execute(new Runnable() {
+				@Override
+				public void run() {
+					flushQuietly();
+				}
+			});
+		}
+	}
+
+	/**
+	 * 由 Reactor 线程调用，尽可能多地写出待写队列中的数据。
+	 *
+	 * 队列头部连续的多个 ByteBuffer 通过 GatheringByteChannel#write(ByteBuffer[]) 一次系统调用（writev）写出，
+	 * 而不是每个缓冲区调用一次 write()。
+	 */
+	void flush() throws IOException {
+		synchronized (outbound) {
+			while (!outbound.isEmpty()) {
+				Object head = outbound.peek();
+				if (head instanceof FileRegion) {
+					FileRegion region = (FileRegion) head;
+					region.transferTo(channel);
+					if (!region.isDone()) {
+						break;
+					}
+					region.close();
+					outbound.poll();
+					continue;
+				}
+
+				int count = 0;
+				for (Object data : outbound) {
+					if (!(data instanceof ByteBuffer) || count == gather.length) {
+						break;
+					}
+					gather[count++] = (ByteBuffer) data;
+				}
+				pendingBytes -= channel.write(gather, 0, count);
+
+				boolean drained = true;
+				for (int i = 0; i < count; i++) {
+					if (gather[i].hasRemaining()) {
+						drained = false;
+						break;
+					}
+					outbound.poll();
+				}
+				Arrays.fill(gather, 0, count, null);
+				if (!drained) {
+					// 内核的发送缓冲区已满，等待下一次 OP_WRITE。
+					break;
+				}
+			}
+
+			updateInterest();
+		}
+	}
+
+	/** 根据待写队列的状态，调整连接关注的事件：是否等待 OP_WRITE，是否暂停 OP_READ。*/
+	private void updateInterest() {
+		synchronized (outbound) {
+			if (!key.isValid()) {
+				return;
+			}
+			int ops = key.interestOps();
+			if (outbound.isEmpty()) {
+				ops &= ~SelectionKey.OP_WRITE;
+			} else {
+				ops |= SelectionKey.OP_WRITE;
+			}
+
+			if (!readPaused && pendingBytes > highWaterMark) {
+				readPaused = true;
+				ops &= ~SelectionKey.OP_READ;
+			} else if (readPaused && pendingBytes <= lowWaterMark) {
+				readPaused = false;
+				ops |= SelectionKey.OP_READ;
+			}
+			key.interestOps(ops);
+		}
+	}
+
+	private void flushQuietly() {
+		if (closed) {
+			return;
+		}
+		try {
+			flush();
+		} catch (IOException e) {
+			close();
+		}
+	}
+
+	/** 关闭连接。可以重复调用，Handler#onClose() 只会被调用一次。*/
+	public void close() {
+		if (reactor.inEventLoop()) {
+			doClose();
+		} else {
+			reactor.execute(new Runnable() {
+				@Override
+				public void run() {
+					doClose();
+				}
+			});
+		}
+	}
+
+	private void doClose() {
+		synchronized (outbound) {
+			if (closed) {
+				return;
+			}
+			closed = true;
+			for (Object data : outbound) {
+				if (data instanceof FileRegion) {
+					((FileRegion) data).close();
+				}
+			}
+			outbound.clear();
+			pendingBytes = 0;
+		}
+		if (key != null) {
+			key.cancel();
+		}
+		try {
+			channel.close();
+		} catch (IOException e) {}
+		handler.onClose(this);
+	}
+
+	public boolean isClosed() {
+		return closed;
+	}
+
+	/** 返回待写队列中还没有写出的字节数。*/
+	public long getPendingBytes() {
+		synchronized (outbound) {
+			return pendingBytes;
+		}
+	}
+
+	/** 待写的字节数没有超过高水位线时返回 true。主动推送数据的 Handler 可以据此决定是否暂缓生成数据。*/
+	public boolean isWritable() {
+		return getPendingBytes() <= highWaterMark;
+	}
+
+	public SocketAddress getRemoteAddress() {
+		return channel.socket().getRemoteSocketAddress();
+	}
+
+	public BufferPool getBufferPool() {
+		return pool;
+	}
+
+	public Object getAttachment() {
+		return attachment;
+	}
+
+	public void setAttachment(Object attachment) {
+		this.attachment = attachment;
+	}
+}
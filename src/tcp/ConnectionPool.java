@@ -0,0 +1,75 @@
+package tcp;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * 客户端连接池：固定数量的 PipelinedConnection，请求按轮询的方式分配到各个连接上。
+ *
+ * 连接在第一次使用时才建立，此后一直保持（keep-alive）。如果某个连接断开了，下一次轮到它时会重新建立。
+ *
+ * @author FrankTaylor <mailto:hubin@300.cn>
+ * @since 1.0
+ */
+public class ConnectionPool {
+
+	private final InetSocketAddress address;
+	private final int maxInFlight;
+	private final AtomicReferenceArray<PipelinedConnection> connections;
+	private final AtomicInteger next = new AtomicInteger();
+	private volatile boolean closed;
+
+	/**
+	 * @param address 服务端地址
+	 * @param size 连接个数
+	 * @param maxInFlight 每个连接上最多允许的在途请求数
+	 */
+	public ConnectionPool(InetSocketAddress address, int size, int maxInFlight) {
+		if (size <= 0 || maxInFlight <= 0) {
+			throw new IllegalArgumentException("size = " + size + ", maxInFlight = " + maxInFlight);
+		}
+		this.address = address;
+		this.maxInFlight = maxInFlight;
+		this.connections = new AtomicReferenceArray<PipelinedConnection>(size);
+	}
+
+	/** 在池中的某个连接上发送一个请求，参见 PipelinedConnection#send()。*/
+	public Future<byte[]> send(byte[] payload) throws IOException, InterruptedException {
+		int index = (next.getAndIncrement() & Integer.MAX_VALUE) % connections.length();
+		return connection(index).send(payload);
+	}
+
+	private PipelinedConnection connection(int index) throws IOException {
+		PipelinedConnection connection = connections.get(index);
+		if (connection != null && !connection.isClosed()) {
+			return connection;
+		}
+
+		// 只有建立（或重建）连接时才加锁。
+		synchronized (this) {
+			if (closed) {
+				throw new IOException("ConnectionPool closed");
+			}
+			connection = connections.get(index);
+			if (connection == null || connection.isClosed()) {
+				connection = new PipelinedConnection(address, maxInFlight);
+				connections.set(index, connection);
+			}
+			return connection;
+		}
+	}
+
+	/** 关闭池中的所有连接。*/
+	public synchronized void close() {
+		closed = true;
+		for (int i = 0; i < connections.length(); i++) {
+			PipelinedConnection connection = connections.getAndSet(i, null);
+			if (connection != null) {
+				connection.close();
+			}
+		}
+	}
+}
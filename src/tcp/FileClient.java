@@ -0,0 +1,113 @@
+package tcp;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+
+/**
+ * FileServerHandler 的客户端，把服务端发来的文件内容保存到本地文件中。
+ *
+ * 有两种保存方式：
+ * 1、内存映射（mapped = true）：先把目标文件扩展到响应的长度，再用 FileChannel#map() 把它映射到内存中，
+ *   SocketChannel#read() 直接把数据读到映射区域里，不经过堆数组；
+ * 2、普通拷贝（mapped = false）：与 Main_1.Server#getData() 的做法一样，用 InputStream 读到堆数组，再写到 FileOutputStream。
+ *
+ * 单个 MappedByteBuffer 最多只能映射 2 GB，所以大文件按 MAP_WINDOW 大小分段映射。
+ *
+ * @author FrankTaylor <mailto:hubin@300.cn>
+ * @since 1.0
+ */
+public class FileClient {
+
+	private static final long MAP_WINDOW = 1024L * 1024 * 256;
+
+	private final InetSocketAddress address;
+
+	public FileClient(InetSocketAddress address) {
+		this.address = address;
+	}
+
+	/**
+	 * 请求文件 path 中从 offset 开始、长度为 length 的内容（-1 表示到文件末尾），保存到 dest 中。
+	 *
+	 * @param command FileServerHandler.SEND_FILE 或 FileServerHandler.COPY_FILE
+	 * @return 收到的字节数
+	 * @throws IOException 服务端拒绝了请求，或者传输出错
+	 */
+	public long fetch(String command, String path, long offset, long length, File dest, boolean mapped) throws IOException {
+		SocketChannel channel = SocketChannel.open(address);
+		try {
+			ByteBuffer request = FrameCodec.encode((command + " " + offset + " " + length + " " + path).getBytes("UTF-8"));
+			while (request.hasRemaining()) {
+				channel.write(request);
+			}
+
+			ByteBuffer header = ByteBuffer.allocate(8);
+			readFully(channel, header);
+			header.flip();
+			long size = header.getLong();
+			if (size < 0) {
+				throw new IOException("Request rejected: " + path);
+			}
+
+			if (mapped) {
+				receiveMapped(channel, dest, size);
+			} else {
+				receiveCopy(channel, dest, size);
+			}
+			return size;
+		} finally {
+			channel.close();
+		}
+	}
+
+	private void receiveMapped(SocketChannel channel, File dest, long size) throws IOException {
+		RandomAccessFile file = new RandomAccessFile(dest, "rw");
+		try {
+			file.setLength(size);
+			FileChannel fileChannel = file.getChannel();
+			for (long position = 0; position < size; position += MAP_WINDOW) {
+				MappedByteBuffer window = fileChannel.map(FileChannel.MapMode.READ_WRITE, position, Math.min(MAP_WINDOW, size - position));
+				readFully(channel, window);
+			}
+		} finally {
+			file.close();
+		}
+	}
+
+	private void receiveCopy(SocketChannel channel, File dest, long size) throws IOException {
+		InputStream in = Channels.newInputStream(channel);
+		OutputStream out = new FileOutputStream(dest);
+		try {
+			byte buff[] = new byte[1024 * 64];
+			long remaining = size;
+			while (remaining > 0) {
+				int rc = in.read(buff, 0, (int) Math.min(buff.length, remaining));
+				if (rc < 0) {
+					throw new IOException("Connection closed, " + remaining + " bytes missing");
+				}
+				out.write(buff, 0, rc);
+				remaining -= rc;
+			}
+		} finally {
+			out.close();
+		}
+	}
+
+	private static void readFully(SocketChannel channel, ByteBuffer buffer) throws IOException {
+		while (buffer.hasRemaining()) {
+			if (channel.read(buffer) < 0) {
+				throw new IOException("Connection closed, " + buffer.remaining() + " bytes missing");
+			}
+		}
+	}
+}
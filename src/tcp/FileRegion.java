@@ -0,0 +1,70 @@
+package tcp;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * 文件中的一段区域 [position, position + count)，作为 Connection 待写队列中的一项写出。
+ *
+ * 写出时使用 FileChannel#transferTo()（零拷贝），在 Linux 上对应 sendfile 系统调用，数据直接从页缓存发送到 Socket，
+ * 每次只写出 Socket 发送缓冲区能容纳的数据，不会把整个文件读入内存。
+ *
+ * FileRegion 在 Reactor 线程上写出，所以不能有阻塞的读操作。“先读到堆数组再写出” 的普通拷贝方式由 FileServerHandler
+ * 在自己的线程中完成，不使用 FileRegion。
+ *
+ * 创建之后文件被截短时，transferTo() 会抛出 IOException，而不是一直返回 0，让连接在 OP_WRITE 上空转。
+ *
+ * @author FrankTaylor <mailto:hubin@300.cn>
+ * @since 1.0
+ */
+public class FileRegion {
+
+	private final FileChannel fileChannel;
+
+	private long position;
+	private long remaining;
+
+	public FileRegion(File file, long position, long count) throws IOException {
+		if (position < 0 || count < 0) {
+			throw new IllegalArgumentException("position = " + position + ", count = " + count);
+		}
+		this.position = position;
+		this.remaining = count;
+		this.fileChannel = new RandomAccessFile(file, "r").getChannel();
+	}
+
+	/** 尽可能多地把剩余的数据写到 target 中，返回本次写出的字节数。*/
+	public long transferTo(WritableByteChannel target) throws IOException {
+		long total = 0;
+		while (remaining > 0) {
+			long n = fileChannel.transferTo(position, remaining, target);
+			if (n <= 0) {
+				// 可能是 Socket 的发送缓冲区满了，也可能是文件被截短了，后一种情况再等下去也不会有数据。
+				if (position >= fileChannel.size()) {
+					throw new IOException("File truncated at " + fileChannel.size() + ", " + remaining + " bytes missing");
+				}
+				break;
+			}
+			position += n;
+			remaining -= n;
+			total += n;
+		}
+		return total;
+	}
+
+	public boolean isDone() {
+		return remaining == 0;
+	}
+
+	/** 关闭文件。*/
+	public void close() {
+		try {
+			fileChannel.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+}
@@ -0,0 +1,242 @@
+package tcp;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 文件发送服务：客户端按 FrameCodec 协议发送一个请求帧，服务端返回文件中指定范围的内容。
+ *
+ * 请求帧的内容是一行 UTF-8 文本：“命令 起始位置 长度 路径”，例如：SENDFILE 0 -1 logs/app.log
+ * 1、命令：SENDFILE 使用 FileChannel#transferTo() 零拷贝发送；COPYFILE 使用 InputStream 读到堆数组再发送（用于对比）；
+ * 2、长度为 -1 表示一直到文件末尾，超出文件末尾的部分会被截掉；
+ * 3、路径是相对于根目录的路径，不能访问根目录以外的文件。路径中的符号链接会被解析，指向根目录以外的链接同样被拒绝。
+ *
+ * 响应由 8 字节的长度（long，因为文件可能超过 2 GB）加上相应长度的文件内容组成。请求无效时长度为 -1，没有内容。
+ *
+ * 检查路径、打开文件以及 COPYFILE 的读文件都是阻塞操作，所以请求不在 Reactor 线程上处理，而是交给 FileServerHandler 自己的线程池：
+ * 同一个连接的请求按到达的顺序依次处理，响应不会交错；SENDFILE 的 FileRegion 仍然由 Reactor 线程以非阻塞的方式写出；
+ * COPYFILE 每读出一块就写入连接，待写的数据超过高水位线时暂停读取，不会把整个文件读入内存。
+ *
+ * @author FrankTaylor <mailto:hubin@300.cn>
+ * @since 1.0
+ */
+public class FileServerHandler extends FramedHandler {
+
+	public static final String SEND_FILE = "SENDFILE";
+	public static final String COPY_FILE = "COPYFILE";
+
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+	private static final int COPY_CHUNK = 1024 * 64;
+
+	/** 根目录的真实路径（已解析符号链接）。*/
+	private final Path root;
+
+	private final ExecutorService executor;
+	private final Map<Connection, Responder> responders = new ConcurrentHashMap<Connection, Responder>();
+
+	public FileServerHandler(File root) throws IOException {
+		this(root, Runtime.getRuntime().availableProcessors() * 2);
+	}
+
+	/**
+	 * @param threads 处理请求的线程数
+	 */
+	public FileServerHandler(File root, int threads) throws IOException {
+		this.root = root.toPath().toRealPath();
+		final AtomicInteger count = new AtomicInteger();
+		this.executor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "FileServerHandler-" + count.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+
+	@Override
+	public void onOpen(Connection connection) {
+		super.onOpen(connection);
+		responders.put(connection, new Responder(connection));
+	}
+
+	@Override
+	public void onClose(Connection connection) {
+		responders.remove(connection);
+		super.onClose(connection);
+	}
+
+	@Override
+	protected void onFrame(Connection connection, ByteBuffer frame) {
+		// frame 只在回调期间有效，解码成字符串之后再交给线程池。
+		String request = UTF_8.decode(frame).toString();
+		Responder responder = responders.get(connection);
+		if (responder != null) {
+			responder.submit(request);
+		}
+	}
+
+	/** 停止处理请求的线程池。*/
+	public void shutdown() {
+		executor.shutdownNow();
+	}
+
+	/** 一个连接的请求队列，保证同一个连接的请求在线程池中依次处理。*/
+	private class Responder implements Runnable {
+
+		private final Connection connection;
+		private final ArrayDeque<String> requests = new ArrayDeque<String>();
+		private boolean running;
+
+		Responder(Connection connection) {
+			this.connection = connection;
+		}
+
+		void submit(String request) {
+			synchronized (this) {
+				requests.add(request);
+				if (running) {
+					return;
+				}
+				running = true;
+			}
+			executor.execute(this);
+		}
+
+		@Override
+		public void run() {
+			while (true) {
+				String request;
+				synchronized (this) {
+					request = requests.poll();
+					if (request == null) {
+						running = false;
+						return;
+					}
+				}
+				try {
+					respond(connection, request);
+				} catch (InterruptedException e) {
+					connection.close();
+					return;
+				} catch (RuntimeException e) {
+					e.printStackTrace();
+					connection.close();
+				}
+			}
+		}
+	}
+
+	private void respond(Connection connection, String request) throws InterruptedException {
+		String parts[] = request.split(" ", 4);
+
+		File file = null;
+		long offset = 0;
+		long length = -1;
+		boolean zeroCopy = false;
+		FileRegion region = null;
+		try {
+			if (parts.length == 4 && (SEND_FILE.equals(parts[0]) || COPY_FILE.equals(parts[0]))) {
+				zeroCopy = SEND_FILE.equals(parts[0]);
+				offset = Long.parseLong(parts[1]);
+				length = Long.parseLong(parts[2]);
+				file = resolve(parts[3]);
+
+				long size = file.length();
+				if (offset < 0 || offset > size) {
+					throw new IllegalArgumentException("Illegal offset: " + offset);
+				}
+				if (length < 0 || length > size - offset) {
+					length = size - offset;
+				}
+				if (zeroCopy) {
+					region = new FileRegion(file, offset, length);
+				}
+			} else {
+				throw new IllegalArgumentException("Illegal request: " + request);
+			}
+		} catch (IllegalArgumentException e) {
+			System.out.printf("FileServerHandler: %s\n", e.getMessage());
+			file = null;
+			length = -1;
+		} catch (IOException e) {
+			System.out.printf("FileServerHandler: %s\n", e.getMessage());
+			file = null;
+			length = -1;
+		}
+
+		ByteBuffer header = ByteBuffer.allocate(8);
+		header.putLong(length);
+		header.flip();
+		connection.write(header);
+		if (region != null) {
+			connection.write(region);
+		} else if (file != null) {
+			copy(connection, file, offset, length);
+		}
+	}
+
+	/** 与 Main_1 中的做法一样，用 InputStream 把文件内容读到堆数组中，再写到连接。读文件出错时关闭连接。*/
+	private void copy(Connection connection, File file, long offset, long length) throws InterruptedException {
+		try {
+			InputStream in = new FileInputStream(file);
+			try {
+				long skipped = 0;
+				while (skipped < offset) {
+					long n = in.skip(offset - skipped);
+					if (n <= 0) {
+						throw new IOException("Unable to skip to " + offset);
+					}
+					skipped += n;
+				}
+
+				long remaining = length;
+				while (remaining > 0 && !connection.isClosed()) {
+					// 待写的数据太多时等连接把它们写出去，不让读文件的速度超过发送的速度。
+					while (!connection.isWritable() && !connection.isClosed()) {
+						Thread.sleep(1);
+					}
+					byte chunk[] = new byte[(int) Math.min(COPY_CHUNK, remaining)];
+					int n = in.read(chunk);
+					if (n < 0) {
+						throw new IOException("Unexpected end of file: " + file);
+					}
+					connection.write(ByteBuffer.wrap(chunk, 0, n));
+					remaining -= n;
+				}
+			} finally {
+				in.close();
+			}
+		} catch (IOException e) {
+			// 长度已经发出去了，无法再告诉客户端出错，只能关闭连接。
+			System.out.printf("FileServerHandler: %s\n", e.getMessage());
+			connection.close();
+		}
+	}
+
+	/** 把请求中的路径解析为根目录下的文件。路径中的符号链接会被解析，解析后的真实路径必须位于根目录之下。*/
+	private File resolve(String name) throws IOException {
+		Path path = root.resolve(name).toRealPath();
+		if (!path.startsWith(root)) {
+			throw new IllegalArgumentException("Path outside root: " + name);
+		}
+		File file = path.toFile();
+		if (!file.isFile() || !file.canRead()) {
+			throw new IOException("Not a readable file: " + name);
+		}
+		return file;
+	}
+}
@@ -0,0 +1,49 @@
+package tcp;
+
+import java.nio.ByteBuffer;
+
+/**
+ * 长度前缀帧协议：每一帧由 4 字节的大端序长度（不包含这 4 个字节本身）加上相应长度的内容组成。
+ *
+ * Main_1.Server 只能靠对端关闭连接来判断一条消息结束，所以每条消息都要建立、关闭一次连接。
+ * 有了长度前缀，一个连接上就可以连续发送任意多条消息，接收方按长度把字节流切分成帧即可（参见 FrameDecoder）。
+ *
+ * @author FrankTaylor <mailto:hubin@300.cn>
+ * @since 1.0
+ */
+public final class FrameCodec {
+
+	/** 帧头（长度字段）的字节数。*/
+	public static final int HEADER_LENGTH = 4;
+
+	/** 默认允许的最大帧长度。*/
+	public static final int DEFAULT_MAX_FRAME_LENGTH = 1024 * 1024 * 16;
+
+	private FrameCodec() {}
+
+	/** 返回一个只包含帧头的缓冲区，可以与帧内容分开写出，避免为了拼接帧头而拷贝内容。*/
+	public static ByteBuffer header(int length) {
+		if (length < 0) {
+			throw new IllegalArgumentException("length = " + length);
+		}
+		ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH);
+		header.putInt(length);
+		header.flip();
+		return header;
+	}
+
+	/** 把 payload 编码成一个完整的帧，适合客户端用阻塞方式一次写出。*/
+	public static ByteBuffer encode(byte[] payload) {
+		ByteBuffer frame = ByteBuffer.allocate(HEADER_LENGTH + payload.length);
+		frame.putInt(payload.length);
+		frame.put(payload);
+		frame.flip();
+		return frame;
+	}
+
+	/** 把 payload 中剩余的字节作为一帧写到连接中。帧头和内容分别入队，payload 本身不会被拷贝。*/
+	public static void write(Connection connection, ByteBuffer payload) {
+		connection.write(header(payload.remaining()));
+		connection.write(payload);
+	}
+}
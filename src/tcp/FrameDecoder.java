@@ -0,0 +1,158 @@
+package tcp;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * 把字节流按 FrameCodec 的长度前缀协议切分成帧。
+ *
+ * Main_1.Server#getData() 每读一次数据都要经过三次拷贝：Socket -> 64 KB 的堆数组 -> ByteArrayOutputStream -> toByteArray()。
+ * FrameDecoder 则尽量不拷贝：
+ * 1、如果一帧完整地落在本次读到的缓冲区中，直接把这段区域作为只读的 slice 交给 Listener；
+ * 2、只有跨越两次读取的 “半帧” 才会被拷贝到一个可重复使用的直接缓冲区中，凑齐后同样以 slice 的形式交出；
+ * 3、比池中缓冲区大的半帧改用堆缓冲区，不会每个大帧都分配一块新的堆外内存。不超过 MAX_RETAINED 的堆缓冲区会留给下一个大帧继续使用。
+ *
+ * 注意：交给 Listener 的帧只在回调期间有效，回调返回后底层缓冲区就可能被改写或归还到 BufferPool 中。
+ *
+ * FrameDecoder 不是线程安全的，每个连接使用一个实例。
+ *
+ * @author FrankTaylor <mailto:hubin@300.cn>
+ * @since 1.0
+ */
+public class FrameDecoder {
+
+	/** 接收解码出的帧。*/
+	public interface Listener {
+		void onFrame(ByteBuffer frame) throws IOException;
+	}
+
+	/** 留给下一个大帧使用的堆缓冲区的最大容量，更大的缓冲区用完就丢弃。*/
+	static final int MAX_RETAINED = 1024 * 1024;
+
+	private final BufferPool pool;
+	private final int maxFrameLength;
+
+	/** 上一个大帧用过的堆缓冲区，没有时为 null。*/
+	private ByteBuffer large;
+
+	/** 保存不完整的帧（写模式），没有半帧时为 null，此时不占用任何缓冲区。*/
+	private ByteBuffer cumulation;
+
+	public FrameDecoder(BufferPool pool) {
+		this(pool, FrameCodec.DEFAULT_MAX_FRAME_LENGTH);
+	}
+
+	public FrameDecoder(BufferPool pool, int maxFrameLength) {
+		this.pool = pool;
+		this.maxFrameLength = maxFrameLength;
+	}
+
+	/** 解码 in 中剩余的所有字节，每得到一个完整的帧就回调一次 listener。*/
+	public void decode(ByteBuffer in, Listener listener) throws IOException {
+		// 先把上次留下的半帧补齐。
+		if (cumulation != null) {
+			if (!complete(in)) {
+				return;
+			}
+			ByteBuffer frame = cumulation;
+			frame.flip();
+			frame.position(FrameCodec.HEADER_LENGTH);
+			try {
+				listener.onFrame(frame.slice().asReadOnlyBuffer());
+			} finally {
+				cumulation = null;
+				recycle(frame);
+			}
+		}
+
+		// 完整的帧直接从 in 中切出，不做拷贝。
+		while (in.remaining() >= FrameCodec.HEADER_LENGTH) {
+			int length = checkLength(in.getInt(in.position()));
+			if (in.remaining() < FrameCodec.HEADER_LENGTH + length) {
+				break;
+			}
+			int start = in.position() + FrameCodec.HEADER_LENGTH;
+			ByteBuffer frame = in.duplicate();
+			frame.limit(start + length);
+			frame.position(start);
+			in.position(start + length);
+			listener.onFrame(frame.slice().asReadOnlyBuffer());
+		}
+
+		// 剩下的半帧留到下一次。
+		if (in.hasRemaining()) {
+			cumulation = pool.acquire();
+			if (in.remaining() >= FrameCodec.HEADER_LENGTH) {
+				ensureCapacity(FrameCodec.HEADER_LENGTH + in.getInt(in.position()));
+			}
+			cumulation.put(in);
+		}
+	}
+
+	/** 从 in 中拷贝刚好够补齐当前半帧的字节。返回 true 表示帧已经完整。*/
+	private boolean complete(ByteBuffer in) throws IOException {
+		if (cumulation.position() < FrameCodec.HEADER_LENGTH) {
+			transfer(in, FrameCodec.HEADER_LENGTH - cumulation.position());
+			if (cumulation.position() < FrameCodec.HEADER_LENGTH) {
+				return false;
+			}
+		}
+
+		int frameLength = FrameCodec.HEADER_LENGTH + checkLength(cumulation.getInt(0));
+		ensureCapacity(frameLength);
+		transfer(in, frameLength - cumulation.position());
+		return cumulation.position() == frameLength;
+	}
+
+	private void transfer(ByteBuffer in, int count) {
+		int n = Math.min(count, in.remaining());
+		ByteBuffer part = in.duplicate();
+		part.limit(part.position() + n);
+		cumulation.put(part);
+		in.position(in.position() + n);
+	}
+
+	/** 超过池中缓冲区容量的大帧改用堆缓冲区：优先使用上一个大帧留下的缓冲区，不够大时才重新分配。*/
+	private void ensureCapacity(int capacity) {
+		if (cumulation.capacity() >= capacity) {
+			return;
+		}
+		ByteBuffer bigger;
+		if (large != null && large.capacity() >= capacity) {
+			bigger = large;
+			bigger.clear();
+		} else {
+			bigger = ByteBuffer.allocate(capacity);
+		}
+		large = null;
+		cumulation.flip();
+		bigger.put(cumulation);
+		recycle(cumulation);
+		cumulation = bigger;
+	}
+
+	/** 直接缓冲区归还到池中，不太大的堆缓冲区留给下一个大帧。*/
+	private void recycle(ByteBuffer buffer) {
+		if (buffer.isDirect()) {
+			pool.release(buffer);
+		} else if (buffer.capacity() <= MAX_RETAINED) {
+			large = buffer;
+		}
+	}
+
+	private int checkLength(int length) throws IOException {
+		if (length < 0 || length > maxFrameLength) {
+			throw new IOException("Illegal frame length: " + length);
+		}
+		return length;
+	}
+
+	/** 连接关闭时调用，把缓存半帧的缓冲区归还到池中，并丢弃留下的堆缓冲区。*/
+	public void release() {
+		if (cumulation != null) {
+			recycle(cumulation);
+			cumulation = null;
+		}
+		large = null;
+	}
+}
@@ -0,0 +1,69 @@
+package tcp;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * 按 FrameCodec 协议处理连接的 Handler：为每个连接创建一个 FrameDecoder，把读到的字节流切分成帧后交给 onFrame()。
+ *
+ * 注意：FramedHandler 用 Connection 的 attachment 保存解码器，子类不能再使用 attachment；
+ * 子类覆盖 onOpen() 和 onClose() 时必须调用父类的方法。
+ *
+ * @author FrankTaylor <mailto:hubin@300.cn>
+ * @since 1.0
+ */
+public abstract class FramedHandler implements Handler {
+
+	private final int maxFrameLength;
+
+	protected FramedHandler() {
+		this(FrameCodec.DEFAULT_MAX_FRAME_LENGTH);
+	}
+
+	protected FramedHandler(int maxFrameLength) {
+		this.maxFrameLength = maxFrameLength;
+	}
+
+	/**
+	 * 收到一个完整的帧时调用。
+	 *
+	 * frame 是只读的，并且只在回调期间有效。如果需要异步处理，必须自己拷贝一份。
+	 */
+	protected abstract void onFrame(Connection connection, ByteBuffer frame) throws IOException;
+
+	@Override
+	public void onOpen(Connection connection) {
+		connection.setAttachment(new Session(connection));
+	}
+
+	@Override
+	public final void onRead(Connection connection, ByteBuffer data) throws IOException {
+		Session session = (Session) connection.getAttachment();
+		session.decoder.decode(data, session);
+	}
+
+	@Override
+	public void onClose(Connection connection) {
+		Session session = (Session) connection.getAttachment();
+		if (session != null) {
+			session.decoder.release();
+		}
+	}
+
+	/** 连接和它的解码器。*/
+	private class Session implements FrameDecoder.Listener {
+
+		private final Connection connection;
+		private final FrameDecoder decoder;
+
+		Session(Connection connection) {
+			this.connection = connection;
+			this.decoder = new FrameDecoder(connection.getBufferPool(), maxFrameLength);
+		}
+
+		@Override
+		public void onFrame(ByteBuffer frame) throws IOException {
+			FramedHandler.this.onFrame(connection, frame);
+		}
+	}
+}
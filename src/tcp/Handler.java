@@ -0,0 +1,31 @@
+package tcp;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * NioServer 的业务处理接口。
+ *
+ * 所有回调方法都在连接所属的 Reactor 线程中执行，同一个连接的回调不会并发执行，所以实现类不必对单个连接的状态加锁。
+ * 但同一个 Handler 对象会被所有 Reactor 线程共享，因此跨连接共享的状态必须是线程安全的。
+ *
+ * 回调方法中不能执行阻塞操作，否则会拖慢同一个 Reactor 上的所有连接。
+ *
+ * @author FrankTaylor <mailto:hubin@300.cn>
+ * @since 1.0
+ */
+public interface Handler {
+
+	/** 连接注册到 Reactor 之后调用。*/
+	void onOpen(Connection connection);
+
+	/**
+	 * 从连接中读到数据时调用。
+	 *
+	 * 注意：data 是从 BufferPool 中借来的缓冲区，回调返回后就会被归还到池中。如果需要在回调之外使用这些数据，必须自己拷贝一份。
+	 */
+	void onRead(Connection connection, ByteBuffer data) throws IOException;
+
+	/** 连接关闭（对端关闭、读写出错或服务端主动关闭）之后调用，每个连接只调用一次。*/
+	void onClose(Connection connection);
+}
@@ -5,50 +5,153 @@ import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
-import java.io.OutputStream;
 import java.io.PrintWriter;
+import java.lang.reflect.Method;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.UnknownHostException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
 
 public class Main_1 {
 	
-	private static class Server implements Runnable {
+	/** 服务端处理连接的方式。*/
+	enum Mode {
+		/** 在 accept 线程中逐个处理连接，处理完一个连接才接受下一个连接。*/
+		SINGLE,
+		/** 把连接交给固定大小的平台线程池处理。*/
+		POOL,
+		/** 每个连接使用一个虚拟线程处理（需要 JDK 21 及以上版本，否则退化为 POOL）。*/
+		VIRTUAL
+	}
+	
+	static class Server implements Runnable {
+		
+		/** 通过系统属性选择处理连接的方式，例如：-Dtcp.server.mode=virtual 。*/
+		static final String MODE_PROPERTY = "tcp.server.mode";
+		
+		private final int port;
+		private final Mode mode;
+		private final int poolSize;
+		
+		private volatile ServerSocket ss;
+		private ExecutorService executor;
+		
+		public Server() {
+			this(5678, Mode.valueOf(System.getProperty(MODE_PROPERTY, Mode.SINGLE.name()).toUpperCase()));
+		}
+		
+		public Server(int port, Mode mode) {
+			this(port, mode, 200);
+		}
+		
+		/**
+		 * @param port 监听的端口
+		 * @param mode 处理连接的方式
+		 * @param poolSize POOL 模式下线程池的大小
+		 */
+		public Server(int port, Mode mode, int poolSize) {
+			this.port = port;
+			this.mode = mode;
+			this.poolSize = poolSize;
+		}
 		
 		@Override
 		public void run() {
+			executor = newExecutor();
 			
 			try {
-				ServerSocket ss = new ServerSocket(5678);
-				Socket socket = null;
+				ss = new ServerSocket(port, 1024);
 				while (true) {
+					final Socket socket;
 					try {
 						// 从连接队列中取出一个客户端连接，如果没有则等待。
 						socket = ss.accept();
-						InputStream is = socket.getInputStream();
-						OutputStream out = socket.getOutputStream();
-						
-						System.out.println("毒牙");
-						System.out.println("客户端传来-------->" + new String(getData(is)));
-						System.out.println("毒牙2");
-//						out.write("服务端带来的问候".getBytes());
-//						out.flush();
-						
-					} catch (Exception e) {
-						e.printStackTrace();
-					} finally {
-						// 处理完请求后，关闭客户端 Socket。
-						if (socket != null) {
-							socket.close();
+					} catch (IOException e) {
+						// shutdown() 关闭了 ServerSocket。
+						if (ss.isClosed()) {
+							break;
 						}
+						e.printStackTrace();
+						continue;
+					}
+					
+					if (executor == null) {
+						handle(socket);
+					} else {
+						executor.execute(new Runnable() {
+							@Override
+							public void run() {
+								handle(socket);
+							}
+						});
 					}
 				}
 			} catch (IOException e) {
 				e.printStackTrace();
+			} finally {
+				if (executor != null) {
+					executor.shutdown();
+				}
 			}
 		}
 		
+		/** 停止接受新的连接。已经接受的连接会继续处理完。*/
+		public void shutdown() throws IOException {
+			if (ss != null) {
+				ss.close();
+			}
+		}
+		
+		/**
+		 * 虚拟线程是 JDK 21 才加入的，这里通过反射调用 Executors#newVirtualThreadPerTaskExecutor()，
+		 * 使代码在低版本的 JDK 上也能编译和运行（退化为 POOL 模式）。
+		 */
+		private ExecutorService newExecutor() {
+			switch (mode) {
+			case POOL:
+				return Executors.newFixedThreadPool(poolSize);
+			case VIRTUAL:
+				try {
+					Method method = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+					return (ExecutorService) method.invoke(null);
+				} catch (ReflectiveOperationException e) {
+					System.out.printf("Server: Virtual threads are not available on Java %s, falling back to POOL mode.\n", System.getProperty("java.version"));
+					return Executors.newFixedThreadPool(poolSize);
+				}
+			default:
+				return null;
+			}
+		}
+		
+		/** 处理一个客户端连接：读取客户端发来的全部数据。*/
+		private void handle(Socket socket) {
+			try {
+				InputStream is = socket.getInputStream();
+//				OutputStream out = socket.getOutputStream();
+				
+				onMessage(getData(is));
+//				out.write("服务端带来的问候".getBytes());
+//				out.flush();
+				
+			} catch (Exception e) {
+				e.printStackTrace();
+			} finally {
+				// 处理完请求后，关闭客户端 Socket。
+				try {
+					socket.close();
+				} catch (IOException e) {}
+			}
+		}
+		
+		/** 收到一条完整的消息（客户端关闭连接）时调用。*/
+		protected void onMessage(byte[] data) {
+			System.out.println("毒牙");
+			System.out.println("客户端传来-------->" + new String(data));
+			System.out.println("毒牙2");
+		}
+		
 		private byte[] getData(InputStream is) throws IOException {
 			ByteArrayOutputStream swapStream = new ByteArrayOutputStream();
 			
@@ -0,0 +1,117 @@
+package tcp;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 用 NioServer 代替 Main_1.Server：一个 Acceptor 线程加上每个核心一个 Reactor 线程，就可以同时服务成千上万个连接。
+ *
+ * 客户端沿用 Main_1.ClientWriter 的做法：建立连接，发送一行数据，然后关闭连接。不同的是这里会同时发起大量的客户端连接，
+ * 并且每个客户端在发送数据前会先停顿一会儿，用来模拟 “慢客户端”。在 Main_1.Server 中，这样的客户端会让后面的连接全部排队；
+ * 而在 NioServer 中，停顿的连接只是暂时没有读事件而已，不会影响其他连接。
+ *
+ * @author FrankTaylor <mailto:hubin@300.cn>
+ * @since 1.0
+ */
+public class Main_2 {
+
+	/** 统计收到的连接和字节数，只在连接关闭时输出一次统计信息。*/
+	private static class CountingHandler implements Handler {
+
+		private final AtomicInteger opened = new AtomicInteger();
+		private final AtomicInteger closed = new AtomicInteger();
+		private final AtomicLong bytes = new AtomicLong();
+		private final CountDownLatch done;
+
+		public CountingHandler(CountDownLatch done) {
+			this.done = done;
+		}
+
+		@Override
+		public void onOpen(Connection connection) {
+			opened.incrementAndGet();
+		}
+
+		@Override
+		public void onRead(Connection connection, ByteBuffer data) {
+			// 数据只在回调内有效，这里只统计字节数，不需要拷贝。
+			bytes.addAndGet(data.remaining());
+		}
+
+		@Override
+		public void onClose(Connection connection) {
+			closed.incrementAndGet();
+			done.countDown();
+		}
+	}
+
+	private static class ClientWriter implements Runnable {
+
+		private final int port;
+		private final long delay;
+
+		public ClientWriter(int port, long delay) {
+			this.port = port;
+			this.delay = delay;
+		}
+
+		@Override
+		public void run() {
+			PrintWriter out = null;
+			try {
+				Socket socket = new Socket("localhost", port);
+
+				// 模拟慢客户端：连接建立后过一段时间才发送数据。
+				TimeUnit.MILLISECONDS.sleep(delay);
+
+				out = new PrintWriter(socket.getOutputStream(), true);
+				out.println("客户端发送访问请求!!!!!!!!!!!!!");
+				out.flush();
+			} catch (IOException e) {
+				e.printStackTrace();
+			} catch (InterruptedException e) {
+				e.printStackTrace();
+			} finally {
+				if (out != null) {
+					out.close();
+				}
+			}
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		final int PORT = 5679;
+		final int CLIENTS = 5000;
+
+		CountDownLatch done = new CountDownLatch(CLIENTS);
+		CountingHandler handler = new CountingHandler(done);
+
+		NioServer server = new NioServer(PORT, handler);
+		server.start();
+
+		// 所有客户端几乎同时建立连接，每个客户端停顿 0~1000 毫秒后才发送数据。
+		ExecutorService clients = Executors.newFixedThreadPool(CLIENTS);
+		long start = System.nanoTime();
+		for (int i = 0; i < CLIENTS; i++) {
+			clients.execute(new ClientWriter(PORT, (long) (Math.random() * 1000)));
+		}
+		clients.shutdown();
+
+		done.await(1, TimeUnit.MINUTES);
+		long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+		System.out.printf("Main: Opened: %d, Closed: %d, Bytes: %d, Time: %d ms\n",
+				handler.opened.get(), handler.closed.get(), handler.bytes.get(), elapsed);
+		System.out.printf("Main: Pooled buffers: %d\n", server.getBufferPool().getPooledCount());
+
+		server.shutdown();
+	}
+}
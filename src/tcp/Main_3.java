@@ -0,0 +1,131 @@
+package tcp;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 在一个连接上连续发送多条消息：客户端按 FrameCodec 的长度前缀协议写出多个帧，服务端用 FramedHandler 把字节流切分成帧。
+ *
+ * 与 Main_1 相比：
+ * 1、不再需要每条消息建立、关闭一次连接；
+ * 2、服务端不再把数据拷贝到 ByteArrayOutputStream 中，完整落在一次读取中的帧以 slice 的形式直接交给业务代码。
+ *
+ * 为了覆盖 “半帧” 的情况，客户端发送的帧大小在 0 ~ 200 KB 之间随机变化，大于服务端 64 KB 的读缓冲区。
+ *
+ * @author FrankTaylor <mailto:hubin@300.cn>
+ * @since 1.0
+ */
+public class Main_3 {
+
+	/** 统计收到的帧数和内容的字节数，并校验每帧的内容。*/
+	private static class CountingFrameHandler extends FramedHandler {
+
+		private final AtomicLong frames = new AtomicLong();
+		private final AtomicLong bytes = new AtomicLong();
+		private final AtomicLong corrupted = new AtomicLong();
+		private final CountDownLatch done;
+
+		public CountingFrameHandler(CountDownLatch done) {
+			this.done = done;
+		}
+
+		@Override
+		protected void onFrame(Connection connection, ByteBuffer frame) {
+			frames.incrementAndGet();
+			bytes.addAndGet(frame.remaining());
+
+			// 客户端用帧长度的低 8 位填充帧内容。
+			byte expected = (byte) frame.remaining();
+			for (int i = frame.position(); i < frame.limit(); i++) {
+				if (frame.get(i) != expected) {
+					corrupted.incrementAndGet();
+					break;
+				}
+			}
+		}
+
+		@Override
+		public void onClose(Connection connection) {
+			super.onClose(connection);
+			done.countDown();
+		}
+	}
+
+	private static class FrameWriter implements Runnable {
+
+		private final int port;
+		private final int count;
+		private final AtomicLong sentBytes;
+
+		public FrameWriter(int port, int count, AtomicLong sentBytes) {
+			this.port = port;
+			this.count = count;
+			this.sentBytes = sentBytes;
+		}
+
+		@Override
+		public void run() {
+			Random random = new Random();
+			SocketChannel channel = null;
+			try {
+				channel = SocketChannel.open(new InetSocketAddress("localhost", port));
+				for (int i = 0; i < count; i++) {
+					int length = random.nextInt(1024 * 200);
+					byte payload[] = new byte[length];
+					Arrays.fill(payload, (byte) length);
+
+					ByteBuffer frame = FrameCodec.encode(payload);
+					while (frame.hasRemaining()) {
+						channel.write(frame);
+					}
+					sentBytes.addAndGet(length);
+				}
+			} catch (IOException e) {
+				e.printStackTrace();
+			} finally {
+				if (channel != null) {
+					try {
+						channel.close();
+					} catch (IOException e) {}
+				}
+			}
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		final int PORT = 5680;
+		final int CLIENTS = 50;
+		final int FRAMES_PER_CLIENT = 200;
+
+		CountDownLatch done = new CountDownLatch(CLIENTS);
+		CountingFrameHandler handler = new CountingFrameHandler(done);
+		NioServer server = new NioServer(PORT, handler);
+		server.start();
+
+		AtomicLong sentBytes = new AtomicLong();
+		ExecutorService clients = Executors.newFixedThreadPool(CLIENTS);
+		long start = System.nanoTime();
+		for (int i = 0; i < CLIENTS; i++) {
+			clients.execute(new FrameWriter(PORT, FRAMES_PER_CLIENT, sentBytes));
+		}
+		clients.shutdown();
+
+		done.await(1, TimeUnit.MINUTES);
+		long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+		System.out.printf("Main: Frames: %d/%d, Bytes: %d/%d, Corrupted: %d, Time: %d ms\n",
+				handler.frames.get(), CLIENTS * FRAMES_PER_CLIENT, handler.bytes.get(), sentBytes.get(),
+				handler.corrupted.get(), elapsed);
+
+		server.shutdown();
+	}
+}
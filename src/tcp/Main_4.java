@@ -0,0 +1,189 @@
+package tcp;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 对比两种客户端的吞吐量（每秒请求数）和 p99 延迟：
+ * 1、不使用连接池：沿用 Main_1 中 ClientWriter + ClientReader 的做法，每个请求新建一个 Socket，写出请求、读取响应后关闭连接；
+ * 2、使用连接池：ConnectionPool 中的长连接，请求以流水线的方式发送，每个连接上最多有 MAX_IN_FLIGHT 个在途请求。
+ *
+ * 服务端是一个 NioServer，收到一帧就原样返回一帧。
+ *
+ * @author FrankTaylor <mailto:hubin@300.cn>
+ * @since 1.0
+ */
+public class Main_4 {
+
+	/** 把收到的帧原样写回。*/
+	private static class EchoHandler extends FramedHandler {
+
+		@Override
+		protected void onFrame(Connection connection, ByteBuffer frame) {
+			// frame 只在回调期间有效，而写出是异步的，所以要先拷贝一份。
+			ByteBuffer copy = ByteBuffer.allocate(frame.remaining());
+			copy.put(frame);
+			copy.flip();
+			FrameCodec.write(connection, copy);
+		}
+	}
+
+	/** 每个请求使用一个新连接。返回每个请求的延迟（纳秒）。*/
+	private static class UnpooledClient implements Callable<long[]> {
+
+		private final int port;
+		private final int requests;
+		private final byte payload[];
+
+		public UnpooledClient(int port, int requests, byte payload[]) {
+			this.port = port;
+			this.requests = requests;
+			this.payload = payload;
+		}
+
+		@Override
+		public long[] call() throws IOException {
+			long latencies[] = new long[requests];
+			for (int i = 0; i < requests; i++) {
+				long start = System.nanoTime();
+				Socket socket = new Socket("localhost", port);
+				try {
+					socket.setTcpNoDelay(true);
+					DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+					out.writeInt(payload.length);
+					out.write(payload);
+					out.flush();
+
+					DataInputStream in = new DataInputStream(socket.getInputStream());
+					byte response[] = new byte[in.readInt()];
+					in.readFully(response);
+				} finally {
+					socket.close();
+				}
+				latencies[i] = System.nanoTime() - start;
+			}
+			return latencies;
+		}
+	}
+
+	/** 通过连接池以流水线的方式发送请求。返回每个请求的延迟（纳秒）。*/
+	private static class PooledClient implements Callable<long[]> {
+
+		private final ConnectionPool pool;
+		private final int requests;
+		private final byte payload[];
+
+		public PooledClient(ConnectionPool pool, int requests, byte payload[]) {
+			this.pool = pool;
+			this.requests = requests;
+			this.payload = payload;
+		}
+
+		@Override
+		public long[] call() throws Exception {
+			List<Future<byte[]>> futures = new ArrayList<Future<byte[]>>(requests);
+			for (int i = 0; i < requests; i++) {
+				futures.add(pool.send(payload));
+			}
+
+			long latencies[] = new long[requests];
+			for (int i = 0; i < requests; i++) {
+				Future<byte[]> future = futures.get(i);
+				future.get();
+				latencies[i] = ((PipelinedConnection.ResponseFuture) future).getLatencyNanos();
+			}
+			return latencies;
+		}
+	}
+
+	private static void report(String name, List<Future<long[]>> results, long elapsed) throws Exception {
+		int total = 0;
+		for (Future<long[]> result : results) {
+			total += result.get().length;
+		}
+		long all[] = new long[total];
+		int offset = 0;
+		for (Future<long[]> result : results) {
+			long latencies[] = result.get();
+			System.arraycopy(latencies, 0, all, offset, latencies.length);
+			offset += latencies.length;
+		}
+		Arrays.sort(all);
+
+		System.out.printf("%s: %d requests, %.0f req/s, p50: %.3f ms, p99: %.3f ms\n", name, total,
+				total / (elapsed / 1e9), percentile(all, 0.50) / 1e6, percentile(all, 0.99) / 1e6);
+	}
+
+	private static long percentile(long sorted[], double p) {
+		int index = (int) Math.ceil(p * sorted.length) - 1;
+		return sorted[Math.max(0, index)];
+	}
+
+	private static void runUnpooled(int port, int threads, int requests, byte payload[]) throws Exception {
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		List<Callable<long[]>> clients = new ArrayList<Callable<long[]>>();
+		for (int i = 0; i < threads; i++) {
+			clients.add(new UnpooledClient(port, requests, payload));
+		}
+		long start = System.nanoTime();
+		List<Future<long[]>> results = executor.invokeAll(clients);
+		long elapsed = System.nanoTime() - start;
+		executor.shutdown();
+
+		report("Unpooled", results, elapsed);
+	}
+
+	private static void runPooled(int port, int threads, int requests, byte payload[], int connections, int maxInFlight) throws Exception {
+		ConnectionPool pool = new ConnectionPool(new InetSocketAddress("localhost", port), connections, maxInFlight);
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		List<Callable<long[]>> clients = new ArrayList<Callable<long[]>>();
+		for (int i = 0; i < threads; i++) {
+			clients.add(new PooledClient(pool, requests, payload));
+		}
+		long start = System.nanoTime();
+		List<Future<long[]>> results = executor.invokeAll(clients);
+		long elapsed = System.nanoTime() - start;
+		executor.shutdown();
+		pool.close();
+
+		report("Pooled(" + connections + " x " + maxInFlight + ")", results, elapsed);
+	}
+
+	public static void main(String[] args) throws Exception {
+		final int PORT = 5681;
+		final int THREADS = 8;
+		final int UNPOOLED_REQUESTS = 1000;
+		final int POOLED_REQUESTS = 20000;
+		final int CONNECTIONS = 4;
+		final int MAX_IN_FLIGHT = 64;
+
+		byte payload[] = "客户端发送访问请求!!!!!!!!!!!!!".getBytes("UTF-8");
+
+		NioServer server = new NioServer(PORT, new EchoHandler());
+		server.start();
+
+		// 预热一轮，让 JIT 完成编译，然后再正式测量。
+		runUnpooled(PORT, THREADS, UNPOOLED_REQUESTS / 10, payload);
+		runPooled(PORT, THREADS, POOLED_REQUESTS / 10, payload, CONNECTIONS, MAX_IN_FLIGHT);
+		TimeUnit.SECONDS.sleep(1);
+
+		System.out.println("----------------------------------------");
+		runUnpooled(PORT, THREADS, UNPOOLED_REQUESTS, payload);
+		runPooled(PORT, THREADS, POOLED_REQUESTS, payload, CONNECTIONS, 1);
+		runPooled(PORT, THREADS, POOLED_REQUESTS, payload, CONNECTIONS, MAX_IN_FLIGHT);
+
+		server.shutdown();
+	}
+}
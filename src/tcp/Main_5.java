@@ -0,0 +1,122 @@
+package tcp;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 对比 Main_1.Server 的两种多线程处理方式：固定大小的平台线程池（POOL）和每个连接一个虚拟线程（VIRTUAL）。
+ *
+ * 测试方法：在回环地址上先同时建立 N 个客户端连接并保持不动，全部建立之后，每个客户端再发送一行数据并关闭连接，
+ * 统计从开始建立连接到服务端处理完所有消息所用的时间，以及过程中 JVM 的平台线程数峰值和堆内存占用。
+ * 在 POOL 模式中，线程池里的每个线程都会阻塞在一个 “还没有发送数据” 的连接上，其余的连接只能排队；
+ * 而在 VIRTUAL 模式中，阻塞的读操作只会挂起虚拟线程，不会占住平台线程。
+ *
+ * SINGLE 模式没有参加测试：它在处理第一个连接时不再接受新连接，客户端建立到第 backlog 个连接时就会卡住。
+ *
+ * 注意：
+ * 1、客户端和服务端在同一个进程中，每个连接要占用两个文件描述符，测试 50k 个连接需要把 ulimit -n 调到 100000 以上，
+ *   打开文件数不够时该轮测试会失败并跳过；
+ * 2、单个目的地址的临时端口只有两万多个，所以客户端把连接分散到 127.0.0.1 ~ 127.0.0.8 这几个回环地址上；
+ * 3、虚拟线程需要 JDK 21 及以上版本，低版本的 JDK 上 VIRTUAL 模式会退化为 POOL 模式。
+ *
+ * 运行参数可以指定要测试的连接数，例如：java tcp.Main_5 1000 10000 50000
+ *
+ * @author FrankTaylor <mailto:hubin@300.cn>
+ * @since 1.0
+ */
+public class Main_5 {
+
+	/** 只统计消息数，不输出到控制台。*/
+	private static class CountingServer extends Main_1.Server {
+
+		private final CountDownLatch done;
+
+		public CountingServer(int port, Main_1.Mode mode, CountDownLatch done) {
+			super(port, mode);
+			this.done = done;
+		}
+
+		@Override
+		protected void onMessage(byte[] data) {
+			done.countDown();
+		}
+	}
+
+	private static void run(Main_1.Mode mode, int clients, int port) throws Exception {
+		CountDownLatch done = new CountDownLatch(clients);
+		CountingServer server = new CountingServer(port, mode, done);
+		new Thread(server, "Server-" + mode).start();
+		TimeUnit.MILLISECONDS.sleep(500);
+
+		ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		threads.resetPeakThreadCount();
+		System.gc();
+
+		SocketChannel channels[] = new SocketChannel[clients];
+		long start = System.nanoTime();
+		try {
+			// 先建立所有连接。
+			for (int i = 0; i < clients; i++) {
+				channels[i] = SocketChannel.open();
+				channels[i].socket().connect(new InetSocketAddress("127.0.0." + (1 + i % 8), port), 5000);
+			}
+			long connected = System.nanoTime();
+
+			// 再让每个客户端发送一行数据并关闭连接。
+			byte line[] = "客户端发送访问请求!!!!!!!!!!!!!\n".getBytes("UTF-8");
+			for (int i = 0; i < clients; i++) {
+				ByteBuffer buffer = ByteBuffer.wrap(line);
+				while (buffer.hasRemaining()) {
+					channels[i].write(buffer);
+				}
+				channels[i].close();
+				channels[i] = null;
+			}
+
+			if (!done.await(5, TimeUnit.MINUTES)) {
+				System.out.printf("%s x %d: timed out, %d messages left\n", mode, clients, done.getCount());
+				return;
+			}
+			long elapsed = System.nanoTime() - start;
+			long usedHeap = Runtime.getRuntime().totalMemory() - Runtime.getRuntime().freeMemory();
+
+			System.out.printf("%-7s x %6d: connect %6d ms, total %6d ms, %8.0f msg/s, peak platform threads %5d, heap %5d MB\n",
+					mode, clients, TimeUnit.NANOSECONDS.toMillis(connected - start), TimeUnit.NANOSECONDS.toMillis(elapsed),
+					clients / (elapsed / 1e9), threads.getPeakThreadCount(), usedHeap / 1024 / 1024);
+		} catch (IOException e) {
+			System.out.printf("%-7s x %6d: skipped (%s)\n", mode, clients, e.getMessage());
+		} finally {
+			for (SocketChannel channel : channels) {
+				if (channel != null) {
+					channel.close();
+				}
+			}
+			server.shutdown();
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		int counts[] = {1000, 10000, 50000};
+		if (args.length > 0) {
+			counts = new int[args.length];
+			for (int i = 0; i < args.length; i++) {
+				counts[i] = Integer.parseInt(args[i]);
+			}
+		}
+
+		int port = 5682;
+		for (int clients : counts) {
+			for (Main_1.Mode mode : new Main_1.Mode[] {Main_1.Mode.POOL, Main_1.Mode.VIRTUAL}) {
+				run(mode, clients, port++);
+				System.gc();
+				TimeUnit.SECONDS.sleep(1);
+			}
+		}
+	}
+}
@@ -0,0 +1,108 @@
+package tcp;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.net.InetSocketAddress;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * 用 NioServer + FileServerHandler 传输一个大文件，比较两条路径的吞吐量：
+ * 1、COPYFILE + 普通拷贝：与 Main_1 一样，服务端和客户端都通过 InputStream 和堆数组搬运数据；
+ * 2、SENDFILE + 内存映射：服务端用 FileChannel#transferTo() 发送，客户端直接读到映射的目标文件中。
+ *
+ * 最后再请求一个不从头开始、长度不对齐的范围，并与源文件逐字节比较，检查范围请求是否正确。
+ *
+ * 运行参数是测试文件的大小（MB），默认是 2048，例如：java tcp.Main_6 4096
+ * 测试文件保存在 java.io.tmpdir 下的 tcp-files 目录中，测试结束后会被删除。
+ *
+ * @author FrankTaylor <mailto:hubin@300.cn>
+ * @since 1.0
+ */
+public class Main_6 {
+
+	/** 生成一个大小为 size 的测试文件。*/
+	private static void generate(File file, long size) throws IOException {
+		byte block[] = new byte[1024 * 1024];
+		new Random(42).nextBytes(block);
+
+		OutputStream out = new FileOutputStream(file);
+		try {
+			for (long written = 0; written < size; written += block.length) {
+				out.write(block, 0, (int) Math.min(block.length, size - written));
+			}
+		} finally {
+			out.close();
+		}
+	}
+
+	private static void transfer(FileClient client, String command, boolean mapped, File dest, long size) throws IOException {
+		long start = System.nanoTime();
+		long received = client.fetch(command, "source.dat", 0, -1, dest, mapped);
+		long elapsed = System.nanoTime() - start;
+		if (received != size || dest.length() != size) {
+			throw new IOException("Received " + received + " bytes, expected " + size);
+		}
+		System.out.printf("%-8s %-6s: %6d MB in %6d ms, %8.1f MB/s\n", command, mapped ? "mapped" : "stream",
+				size >> 20, elapsed / 1000000, (size / 1048576.0) / (elapsed / 1e9));
+		dest.delete();
+	}
+
+	private static void checkRange(FileClient client, File source, File dest, long offset, long length) throws IOException {
+		client.fetch(FileServerHandler.SEND_FILE, "source.dat", offset, length, dest, true);
+
+		byte expected[] = new byte[(int) length];
+		byte actual[] = new byte[(int) length];
+		RandomAccessFile in = new RandomAccessFile(source, "r");
+		try {
+			in.seek(offset);
+			in.readFully(expected);
+		} finally {
+			in.close();
+		}
+		in = new RandomAccessFile(dest, "r");
+		try {
+			in.readFully(actual);
+		} finally {
+			in.close();
+		}
+		System.out.printf("Range [%d, %d): %s\n", offset, offset + length, Arrays.equals(expected, actual) ? "OK" : "MISMATCH");
+		dest.delete();
+	}
+
+	public static void main(String[] args) throws Exception {
+		final int PORT = 5690;
+		long size = (args.length > 0 ? Long.parseLong(args[0]) : 2048) * 1024 * 1024;
+
+		File dir = new File(System.getProperty("java.io.tmpdir"), "tcp-files");
+		dir.mkdirs();
+		File source = new File(dir, "source.dat");
+		File dest = new File(dir, "dest.dat");
+
+		System.out.printf("Main: Generating %d MB test file...\n", size >> 20);
+		generate(source, size);
+
+		FileServerHandler handler = new FileServerHandler(dir);
+		NioServer server = new NioServer(PORT, handler);
+		server.start();
+		FileClient client = new FileClient(new InetSocketAddress("localhost", PORT));
+
+		try {
+			// 每种方式各运行两轮，第一轮让源文件进入页缓存，同时完成 JIT 预热。
+			for (int round = 0; round < 2; round++) {
+				System.out.printf("Round %d\n", round + 1);
+				transfer(client, FileServerHandler.COPY_FILE, false, dest, size);
+				transfer(client, FileServerHandler.SEND_FILE, true, dest, size);
+			}
+			checkRange(client, source, dest, size / 3, 1024 * 1024 + 7);
+		} finally {
+			server.shutdown();
+			handler.shutdown();
+			source.delete();
+			dest.delete();
+		}
+	}
+}
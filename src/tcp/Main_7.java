@@ -0,0 +1,120 @@
+package tcp;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 演示待写队列的高低水位线如何处理 “读得慢的客户端”。
+ *
+ * 服务端每收到一个 4 KB 的请求帧，就返回一个 64 KB 的响应帧。客户端用一个线程尽可能快地发送请求，
+ * 用另一个线程慢慢地读取响应（模拟 Main_1.ClientReader 处理能力不足的情况）。
+ *
+ * 1、不设水位线（高水位线为 Integer.MAX_VALUE）：服务端照单全收，所有来不及发送的响应都缓存在待写队列中；
+ * 2、设置水位线：待写队列超过高水位线后服务端暂停读取请求，客户端的发送也随之被 TCP 流量控制挡住，
+ *   服务端缓存的响应始终不会超过 “高水位线 + 一次读取所产生的响应”（这里一次最多读到 16 个请求，即 1 MB 的响应）。
+ *
+ * @author FrankTaylor <mailto:hubin@300.cn>
+ * @since 1.0
+ */
+public class Main_7 {
+
+	private static final int REQUEST_SIZE = 1024 * 4;
+	private static final int RESPONSE_SIZE = 1024 * 64;
+
+	/** 每个请求返回一个 64 KB 的响应，并记录待写队列的最大长度。*/
+	private static class ResponderHandler extends FramedHandler {
+
+		/** 所有响应共用同一份只读的内容，每次写出它的一个 duplicate()，不必拷贝。*/
+		private final ByteBuffer response;
+		private final AtomicLong maxPending = new AtomicLong();
+
+		public ResponderHandler() {
+			ByteBuffer buffer = ByteBuffer.allocateDirect(RESPONSE_SIZE);
+			while (buffer.hasRemaining()) {
+				buffer.put((byte) 'x');
+			}
+			buffer.flip();
+			response = buffer.asReadOnlyBuffer();
+		}
+
+		@Override
+		protected void onFrame(Connection connection, ByteBuffer frame) {
+			FrameCodec.write(connection, response.duplicate());
+
+			long pending = connection.getPendingBytes();
+			long max;
+			while (pending > (max = maxPending.get()) && !maxPending.compareAndSet(max, pending));
+		}
+	}
+
+	/** 尽可能快地发送请求。*/
+	private static class RequestWriter implements Runnable {
+
+		private final SocketChannel channel;
+		private final int requests;
+
+		public RequestWriter(SocketChannel channel, int requests) {
+			this.channel = channel;
+			this.requests = requests;
+		}
+
+		@Override
+		public void run() {
+			try {
+				byte request[] = new byte[REQUEST_SIZE];
+				for (int i = 0; i < requests; i++) {
+					ByteBuffer frame = FrameCodec.encode(request);
+					while (frame.hasRemaining()) {
+						channel.write(frame);
+					}
+				}
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+	private static void run(String name, int port, int low, int high, int requests) throws Exception {
+		ResponderHandler handler = new ResponderHandler();
+		NioServer server = new NioServer(port, handler);
+		server.setWriteBufferWaterMark(low, high);
+		server.start();
+
+		SocketChannel channel = SocketChannel.open(new InetSocketAddress("localhost", port));
+		Thread writer = new Thread(new RequestWriter(channel, requests));
+		long start = System.nanoTime();
+		writer.start();
+
+		// 慢速读取：每读一次就休眠 1 毫秒。
+		long expected = (long) requests * (FrameCodec.HEADER_LENGTH + RESPONSE_SIZE);
+		long received = 0;
+		ByteBuffer buffer = ByteBuffer.allocate(1024 * 16);
+		while (received < expected) {
+			int n = channel.read(buffer);
+			if (n < 0) {
+				break;
+			}
+			received += n;
+			buffer.clear();
+			TimeUnit.MILLISECONDS.sleep(1);
+		}
+		long elapsed = System.nanoTime() - start;
+		writer.join();
+		channel.close();
+		server.shutdown();
+
+		System.out.printf("%-12s: received %d/%d bytes in %d ms, max pending on server: %d KB\n",
+				name, received, expected, TimeUnit.NANOSECONDS.toMillis(elapsed), handler.maxPending.get() / 1024);
+	}
+
+	public static void main(String[] args) throws Exception {
+		final int REQUESTS = 2000;
+
+		run("No limit", 5691, Integer.MAX_VALUE, Integer.MAX_VALUE, REQUESTS);
+		run("256K / 1M", 5692, 1024 * 256, 1024 * 1024, REQUESTS);
+	}
+}
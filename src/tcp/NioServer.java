@@ -0,0 +1,246 @@
+package tcp;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * 基于 java.nio Selector 的多 Reactor 服务端。
+ *
+ * Main_1.Server 在一个线程中用 ServerSocket#accept() 逐个处理连接，并用阻塞的 InputStream 读取数据，
+ * 所以只要有一个客户端发送得慢，其他所有连接都要排队等待。这里改为 “一个 Acceptor + N 个 Reactor” 的结构：
+ * 1、Acceptor 线程只负责接受新连接，并按轮询的方式把连接分配给某个 Reactor；
+ * 2、每个 Reactor 线程拥有自己的 Selector，以非阻塞的方式处理分配给它的所有连接的读写事件；
+ * 3、读数据使用 BufferPool 中的直接缓冲区，读完即归还，所以大量空闲连接不会占用缓冲区内存。
+ *
+ * 默认的 Reactor 个数等于处理器的核心数。
+ *
+ * @author FrankTaylor <mailto:hubin@300.cn>
+ * @since 1.0
+ */
+public class NioServer {
+
+	private final int port;
+	private final Handler handler;
+	private final BufferPool pool;
+	private final Reactor reactors[];
+
+	/** 每个连接待写队列的低水位线和高水位线（字节）。*/
+	private volatile int lowWaterMark = 1024 * 256;
+	private volatile int highWaterMark = 1024 * 1024;
+
+	private ServerSocketChannel serverChannel;
+	private Thread acceptorThread;
+	private volatile boolean running;
+
+	public NioServer(int port, Handler handler) {
+		this(port, handler, Runtime.getRuntime().availableProcessors(), new BufferPool(1024 * 64, 1024));
+	}
+
+	public NioServer(int port, Handler handler, int reactorCount, BufferPool pool) {
+		if (reactorCount <= 0) {
+			throw new IllegalArgumentException("reactorCount = " + reactorCount);
+		}
+		this.port = port;
+		this.handler = handler;
+		this.pool = pool;
+		this.reactors = new Reactor[reactorCount];
+	}
+
+	/**
+	 * 设置每个连接待写队列的水位线：待写的字节数超过 high 时暂停读取这个连接，降到 low 以下时恢复读取。
+	 * 只对此后建立的连接有效。
+	 */
+	public void setWriteBufferWaterMark(int low, int high) {
+		if (low < 0 || high < low) {
+			throw new IllegalArgumentException("low = " + low + ", high = " + high);
+		}
+		this.lowWaterMark = low;
+		this.highWaterMark = high;
+	}
+
+	/** 绑定端口，启动 Acceptor 线程和所有 Reactor 线程。*/
+	public synchronized void start() throws IOException {
+		if (running) {
+			throw new IllegalStateException("NioServer already started");
+		}
+
+		for (int i = 0; i < reactors.length; i++) {
+			reactors[i] = new Reactor(Selector.open());
+			Thread thread = new Thread(reactors[i], "Reactor-" + i);
+			reactors[i].thread = thread;
+		}
+
+		serverChannel = ServerSocketChannel.open();
+		serverChannel.socket().setReuseAddress(true);
+		serverChannel.socket().bind(new InetSocketAddress(port), 1024);
+
+		running = true;
+		for (Reactor reactor : reactors) {
+			reactor.thread.start();
+		}
+		acceptorThread = new Thread(new Acceptor(), "Acceptor");
+		acceptorThread.start();
+	}
+
+	/** 停止接受新连接，关闭所有连接并结束 Reactor 线程。*/
+	public synchronized void shutdown() {
+		if (!running) {
+			return;
+		}
+		running = false;
+		try {
+			serverChannel.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		for (Reactor reactor : reactors) {
+			reactor.selector.wakeup();
+		}
+	}
+
+	public int getPort() {
+		return serverChannel != null ? serverChannel.socket().getLocalPort() : port;
+	}
+
+	public BufferPool getBufferPool() {
+		return pool;
+	}
+
+	/** 接受新连接，并按轮询的方式把连接交给 Reactor。*/
+	private class Acceptor implements Runnable {
+
+		@Override
+		public void run() {
+			int next = 0;
+			while (running) {
+				try {
+					// ServerSocketChannel 默认是阻塞模式，没有新连接时 Acceptor 线程会一直等待。
+					SocketChannel channel = serverChannel.accept();
+					reactors[next].register(channel);
+					next = (next + 1) % reactors.length;
+				} catch (ClosedChannelException e) {
+					// shutdown() 关闭了 ServerSocketChannel。
+					return;
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
+		}
+	}
+
+	/** 在一个线程中通过 Selector 处理多个连接的读写事件。*/
+	class Reactor implements Runnable {
+
+		private final Selector selector;
+
+		/** 其他线程提交给这个 Reactor 执行的任务（注册连接、写数据、关闭连接）。*/
+		private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+
+		private Thread thread;
+
+		Reactor(Selector selector) {
+			this.selector = selector;
+		}
+
+		boolean inEventLoop() {
+			return Thread.currentThread() == thread;
+		}
+
+		/** 把任务交给 Reactor 线程执行，并唤醒可能阻塞在 select() 上的 Reactor 线程。*/
+		void execute(Runnable task) {
+			tasks.offer(task);
+			selector.wakeup();
+		}
+
+		void register(final SocketChannel channel) {
+			final Reactor reactor = this;
+			execute(new Runnable() {
+				@Override
+				public void run() {
+					Connection connection = new Connection(channel, reactor, handler, pool, lowWaterMark, highWaterMark);
+					try {
+						channel.configureBlocking(false);
+						channel.socket().setTcpNoDelay(true);
+						connection.setKey(channel.register(selector, SelectionKey.OP_READ, connection));
+					} catch (IOException e) {
+						try {
+							channel.close();
+						} catch (IOException ex) {}
+						return;
+					}
+					handler.onOpen(connection);
+				}
+			});
+		}
+
+		@Override
+		public void run() {
+			try {
+				while (running) {
+					selector.select();
+					runTasks();
+
+					Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+					while (it.hasNext()) {
+						SelectionKey key = it.next();
+						it.remove();
+
+						Connection connection = (Connection) key.attachment();
+						try {
+							if (key.isValid() && key.isReadable()) {
+								connection.read();
+							}
+							if (key.isValid() && key.isWritable()) {
+								connection.flush();
+							}
+						} catch (IOException e) {
+							connection.close();
+						} catch (RuntimeException e) {
+							// 与 runTasks() 一样，处理器抛出的异常只关闭这一个连接，不能让 Reactor 线程退出。
+							e.printStackTrace();
+							connection.close();
+						}
+					}
+				}
+			} catch (IOException e) {
+				e.printStackTrace();
+			} finally {
+				closeAll();
+			}
+		}
+
+		private void runTasks() {
+			Runnable task;
+			while ((task = tasks.poll()) != null) {
+				try {
+					task.run();
+				} catch (RuntimeException e) {
+					e.printStackTrace();
+				}
+			}
+		}
+
+		private void closeAll() {
+			runTasks();
+			for (SelectionKey key : selector.keys()) {
+				Object attachment = key.attachment();
+				if (attachment instanceof Connection) {
+					((Connection) attachment).close();
+				}
+			}
+			try {
+				selector.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+}
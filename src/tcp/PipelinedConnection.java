@@ -0,0 +1,185 @@
+package tcp;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.Semaphore;
+
+/**
+ * 支持流水线（pipelining）的长连接客户端。
+ *
+ * Main_1.ClientWriter 每发送一条消息都要新建一个 Socket，发送完就关闭，每条消息都要付出一次 TCP 三次握手和四次挥手的代价。
+ * PipelinedConnection 则一直保持连接：
+ * 1、send() 按 FrameCodec 协议写出请求后立即返回一个 Future，不等待响应，所以同一个连接上可以同时有多个请求在途；
+ * 2、服务端按请求的顺序返回响应，后台的读线程把收到的响应按顺序交给等待中的 Future；
+ * 3、用一个 Semaphore 限制在途请求的个数（窗口），窗口满时 send() 会阻塞，避免客户端无限制地堆积请求。
+ *
+ * @author FrankTaylor <mailto:hubin@300.cn>
+ * @since 1.0
+ */
+public class PipelinedConnection {
+
+	/** 不需要执行任何逻辑的 Callable，ResponseFuture 的结果由读线程设置。*/
+	private static final Callable<byte[]> NOTHING = new Callable<byte[]>() {
+		@Override
+		public byte[] call() {
+			return null;
+		}
+	};
+
+	/** 一个请求的响应。除了结果之外，还记录了调用 send() 和响应到达的时间，用来统计延迟。*/
+	public static class ResponseFuture extends FutureTask<byte[]> {
+
+		private final long sentAt;
+		private volatile long completedAt;
+
+		ResponseFuture(long sentAt) {
+			super(NOTHING);
+			this.sentAt = sentAt;
+		}
+
+		void complete(byte[] response) {
+			completedAt = System.nanoTime();
+			set(response);
+		}
+
+		void fail(Throwable cause) {
+			completedAt = System.nanoTime();
+			setException(cause);
+		}
+
+		/** 返回从调用 send()（包括等待窗口的时间）到收到响应所用的纳秒数，响应还没到达时返回 -1。*/
+		public long getLatencyNanos() {
+			return isDone() ? completedAt - sentAt : -1;
+		}
+	}
+
+	private final SocketChannel channel;
+	private final Semaphore window;
+	private final Queue<ResponseFuture> pending = new ConcurrentLinkedQueue<ResponseFuture>();
+	private final Thread reader;
+	private volatile boolean closed;
+
+	public PipelinedConnection(InetSocketAddress address, int maxInFlight) throws IOException {
+		this.window = new Semaphore(maxInFlight);
+		this.channel = SocketChannel.open(address);
+		channel.socket().setTcpNoDelay(true);
+		channel.socket().setKeepAlive(true);
+
+		reader = new Thread(new Reader(), "PipelinedConnection-Reader-" + channel.socket().getLocalPort());
+		reader.setDaemon(true);
+		reader.start();
+	}
+
+	/**
+	 * 发送一个请求。窗口已满时阻塞，直到有在途请求收到响应。
+	 *
+	 * @throws IOException 连接已经关闭，或者写出请求时出错
+	 */
+	public Future<byte[]> send(byte[] payload) throws IOException, InterruptedException {
+		// 在等待窗口之前记录时间，窗口满时阻塞的时间也算在延迟中。
+		long start = System.nanoTime();
+		window.acquire();
+
+		ResponseFuture future = new ResponseFuture(start);
+		ByteBuffer frame = FrameCodec.encode(payload);
+		boolean queued = false;
+		try {
+			synchronized (this) {
+				if (closed) {
+					throw new IOException("Connection closed");
+				}
+
+				// 先入队再写出，保证响应到达时一定能找到对应的 Future。
+				pending.add(future);
+				queued = true;
+				while (frame.hasRemaining()) {
+					channel.write(frame);
+				}
+			}
+		} catch (IOException e) {
+			// 已经入队的请求由读线程在连接关闭后统一归还窗口，这里只归还还没入队的。
+			if (!queued) {
+				window.release();
+			}
+			close();
+			throw e;
+		}
+		return future;
+	}
+
+	/** 返回当前在途的请求个数。*/
+	public int getInFlight() {
+		return pending.size();
+	}
+
+	public boolean isClosed() {
+		return closed;
+	}
+
+	/** 关闭连接，所有还没收到响应的请求都会以异常结束。*/
+	public void close() {
+		synchronized (this) {
+			if (closed) {
+				return;
+			}
+			closed = true;
+		}
+		try {
+			channel.close();
+		} catch (IOException e) {}
+	}
+
+	/** 读取响应，并按顺序交给等待中的 Future。*/
+	private class Reader implements Runnable, FrameDecoder.Listener {
+
+		private final BufferPool pool = new BufferPool(1024 * 64, 2);
+
+		@Override
+		public void onFrame(ByteBuffer frame) throws IOException {
+			ResponseFuture future = pending.poll();
+			if (future == null) {
+				throw new IOException("Unexpected response");
+			}
+
+			// frame 只在回调期间有效，交给 Future 之前必须拷贝出来。
+			byte response[] = new byte[frame.remaining()];
+			frame.get(response);
+			window.release();
+			future.complete(response);
+		}
+
+		@Override
+		public void run() {
+			FrameDecoder decoder = new FrameDecoder(pool);
+			ByteBuffer buffer = pool.acquire();
+			IOException cause = null;
+			try {
+				while (channel.read(buffer) >= 0) {
+					buffer.flip();
+					decoder.decode(buffer, this);
+					buffer.clear();
+				}
+				cause = new IOException("Connection closed by peer");
+			} catch (IOException e) {
+				cause = e;
+			} finally {
+				decoder.release();
+				pool.release(buffer);
+				close();
+
+				ResponseFuture future;
+				while ((future = pending.poll()) != null) {
+					window.release();
+					future.fail(cause);
+				}
+			}
+		}
+	}
+}